@@ -0,0 +1,44 @@
+package org.khanacademy.infection.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with its
+ * allocation rate. Takes the same arguments as JMH's own main, such as a regex
+ * of benchmarks to run, -p users=100000 to choose parameters, or -l to list them:
+ *
+ * <pre>java -jar benchmarks/target/benchmarks.jar GraphBenchmark -p distribution=ZIPF</pre>
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.build();
+		Runner runner = new Runner(options);
+
+		// Only run when nothing else was asked for, as JMH's own main does
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+		} else if (commandLine.shouldList()) {
+			runner.list();
+		} else if (commandLine.shouldListWithParams()) {
+			runner.listWithParams(commandLine);
+		} else if (commandLine.shouldListProfilers()) {
+			commandLine.listProfilers();
+		} else if (commandLine.shouldListResultFormats()) {
+			commandLine.listResultFormats();
+		} else {
+			runner.run();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.khanacademy.infection.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.khanacademy.infection.Infection;
+import org.khanacademy.infection.Population;
+import org.khanacademy.infection.User;
+import org.khanacademy.infection.benchmarks.Populations.Distribution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks changes to the coaching graph: adding and removing edges, which
+ * merge and split infections, and pruning an infection from one of its users.
+ *
+ * Adding and removing edges change the population, so each measurement is a batch
+ * of {@link GraphBenchmark#BATCH} calls on a freshly generated population, and the
+ * reported time is for the whole batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = GraphBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = GraphBenchmark.BATCH)
+@Fork(1)
+public class GraphBenchmark {
+
+	/** The number of calls measured at once */
+	public final static int BATCH = 1000;
+
+	@Param({ "10000", "100000" })
+	public int users;
+
+	@Param({ "1.0", "2.0" })
+	public double density;
+
+	@Param({ "UNIFORM", "ZIPF", "GIANT" })
+	public Distribution distribution;
+
+	private Population population;
+	private int[] coaches, pupils;
+	private int next;
+	private Random random;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		Populations.Generated generated = Populations.generate(users, density, distribution, 1234);
+		population = generated.population;
+		random = new Random(42);
+
+		// Remove the edges in a random order
+		coaches = generated.coaches;
+		pupils = generated.pupils;
+		for (int i = coaches.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = coaches[i];
+			coaches[i] = coaches[j];
+			coaches[j] = temp;
+			temp = pupils[i];
+			pupils[i] = pupils[j];
+			pupils[j] = temp;
+		}
+		next = 0;
+	}
+
+	@Benchmark
+	public boolean addCoach() {
+		return User.addCoach(randomUser(), randomUser());
+	}
+
+	@Benchmark
+	public boolean removeCoach() {
+		int i = next++ % coaches.length;
+		return User.removeCoach(population.getUser(coaches[i]), population.getUser(pupils[i]));
+	}
+
+	@Benchmark
+	public Infection prune() {
+		User user = randomUser();
+		Infection infection = user.getInfection();
+		infection.prune(user);
+		return infection;
+	}
+
+	private User randomUser() {
+		return population.getUser(random.nextInt(users));
+	}
+}
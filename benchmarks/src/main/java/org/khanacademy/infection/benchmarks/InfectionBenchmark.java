@@ -0,0 +1,73 @@
+package org.khanacademy.infection.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.khanacademy.infection.Infection;
+import org.khanacademy.infection.Population;
+import org.khanacademy.infection.benchmarks.Populations.Distribution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks reading the infections of a population, and the rollout calls
+ * which choose which of them to infect, aiming for a third of the users.
+ *
+ * Rollouts only change conditions, not infections, so the same population is used
+ * throughout. Tables aren't reused between calls to
+ * {@link Population#limitedInfectionExact(String, int, int)}, so each call
+ * measures a full solve rather than a traceback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InfectionBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int users;
+
+	@Param({ "1.0", "2.0" })
+	public double density;
+
+	@Param({ "UNIFORM", "ZIPF", "GIANT" })
+	public Distribution distribution;
+
+	private Population population;
+	private int n, threshold;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		population = Populations.generate(users, density, distribution, 1234).population;
+		population.setReuseTables(false);
+		n = users / 3;
+		threshold = users / 1000;
+	}
+
+	@Benchmark
+	public Set<Infection> getInfections() {
+		return population.getInfections();
+	}
+
+	@Benchmark
+	public int limitedInfection() {
+		return population.limitedInfection("A", n, threshold);
+	}
+
+	@Benchmark
+	public int limitedInfectionExact() {
+		return population.limitedInfectionExact("B", n, threshold);
+	}
+}
@@ -0,0 +1,94 @@
+package org.khanacademy.infection.benchmarks;
+
+import java.util.Random;
+
+import org.khanacademy.infection.Population;
+
+/**
+ * Generates random populations for the benchmarks, with a given number of users,
+ * edges per user, and distribution of infection sizes.
+ *
+ * Users are first split into infections with sizes drawn from the distribution.
+ * Each infection is connected by a random tree, and then given random extra edges
+ * between its own users until there are about density edges per user, so density
+ * changes how many edges can be removed without splitting anything, but not the
+ * sizes of the infections. User IDs are shuffled, so infections aren't contiguous.
+ */
+public final class Populations {
+
+	/** The ways infection sizes can be distributed */
+	public enum Distribution {
+		/** Sizes uniform from 1 to 31, like classrooms */
+		UNIFORM,
+		/** Sizes with a power-law tail: mostly single users, and a few very large infections */
+		ZIPF,
+		/** One infection of half the users, and the rest as in UNIFORM */
+		GIANT
+	}
+
+	/** A generated population, and its edges in the order they were made */
+	public static final class Generated {
+		public final Population population;
+		public final int[] coaches, pupils;
+
+		Generated(Population population, int[] coaches, int[] pupils) {
+			this.population = population;
+			this.coaches = coaches;
+			this.pupils = pupils;
+		}
+	}
+
+	private Populations() {
+	}
+
+	/** Generates a population as described above, the same way for the same seed */
+	public static Generated generate(int users, double density, Distribution distribution, long seed) {
+		Random random = new Random(seed);
+		int[] ids = new int[users];
+		for (int i = 0; i < users; i++) ids[i] = i;
+		for (int i = users - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = ids[i];
+			ids[i] = ids[j];
+			ids[j] = temp;
+		}
+
+		int capacity = (int) Math.max(users, Math.ceil(users * density)) + 1;
+		int[] coaches = new int[capacity], pupils = new int[capacity];
+		int edges = 0;
+		for (int start = 0; start < users; ) {
+			int size = Math.min(users - start, size(distribution, users, start, random));
+			for (int i = 1; i < size; i++) {
+				coaches[edges] = ids[start + random.nextInt(i)];
+				pupils[edges++] = ids[start + i];
+			}
+			int extra = size < 2 ? 0 : (int) Math.round((density - 1) * size);
+			for (int i = 0; i < extra && edges < capacity; i++) {
+				coaches[edges] = ids[start + random.nextInt(size)];
+				pupils[edges++] = ids[start + random.nextInt(size)];
+			}
+			start += size;
+		}
+
+		int[] edgeCoaches = new int[edges], edgePupils = new int[edges];
+		System.arraycopy(coaches, 0, edgeCoaches, 0, edges);
+		System.arraycopy(pupils, 0, edgePupils, 0, edges);
+		Population population = new Population();
+		population.bulkLoad(users, edgeCoaches, edgePupils);
+		return new Generated(population, edgeCoaches, edgePupils);
+	}
+
+	// The size of the next infection, starting at the given user
+	private static int size(Distribution distribution, int users, int start, Random random) {
+		switch (distribution) {
+		case ZIPF:
+			// P(size >= s) = 1 / s
+			return (int) Math.min(users, Math.floor(1 / (1 - random.nextDouble())));
+		case GIANT:
+			if (start == 0) return Math.max(1, users / 2);
+			return 1 + random.nextInt(31);
+		default:
+			return 1 + random.nextInt(31);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.khanacademy.infection.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.khanacademy.infection.Infection;
+import org.khanacademy.infection.SizeHistogram;
+import org.khanacademy.infection.SubsetSum;
+import org.khanacademy.infection.SubsetSum.Approximation;
+import org.khanacademy.infection.benchmarks.Populations.Distribution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the {@link SubsetSum} solvers on their own, over the infections of a
+ * generated population, aiming for a third of the users. Density doesn't change the
+ * sizes of the infections, so it is only a parameter to line results up with the
+ * other benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SubsetSumBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int users;
+
+	@Param({ "1.0" })
+	public double density;
+
+	@Param({ "UNIFORM", "ZIPF", "GIANT" })
+	public Distribution distribution;
+
+	private SizeHistogram<Infection> histogram;
+	private int n, threshold;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		histogram = new SizeHistogram<>(
+				Populations.generate(users, density, distribution, 1234).population.getInfections());
+		n = users / 3;
+		threshold = users / 1000;
+	}
+
+	@Benchmark
+	public List<Infection> subsetSum() {
+		return SubsetSum.subsetSum(histogram, n, threshold);
+	}
+
+	@Benchmark
+	public List<Infection> subsetSumApproximate() {
+		return SubsetSum.subsetSumApproximate(histogram, n);
+	}
+
+	@Benchmark
+	public Approximation<Infection> subsetSumFptas() {
+		return SubsetSum.subsetSumApproximate(histogram, n, threshold, 0.001);
+	}
+}
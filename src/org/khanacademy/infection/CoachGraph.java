@@ -0,0 +1,473 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+
+/**
+ * Stores the coaching relationships between {@link User}s, keyed by user ID.
+ * 
+ * Each direction (coach to pupils, and pupil to coaches) is stored in compressed
+ * sparse row form: one int[] of targets for all users, and an int[] of offsets and of
+ * lengths into it for each user. New edges go into a growable delta buffer, which is a
+ * linked list per user in flat int[]s, and removed edges are marked with -1. Once there
+ * are enough of either, the delta buffer is merged back into just the rows that changed.
+ * 
+ * This means an edge costs about 8 bytes in total, rather than two HashSet entries, and
+ * neighbors can be iterated with a reusable {@link Cursor}, without any allocation.
+ * 
+ * Rows with at least {@link CoachGraph#INDEX_DEGREE} edges also get a hash index from
+ * each target to where it is stored, so finding or removing an edge of a hub costs
+ * O(1) rather than a scan of its row, and deleting a hub is linear in its degree.
+ */
+class CoachGraph {
+
+	/** The degree at which a row gets a hash index */
+	final static int INDEX_DEGREE = 16;
+
+	private final Adjacency pupils = new Adjacency();
+	private final Adjacency coaches = new Adjacency();
+	
+	/**
+	 * Adds an edge from the given coach to the given pupil.
+	 * @return True if the edge was not already in the graph
+	 */
+	boolean addEdge(int coach, int pupil) {
+		// Pupils usually have fewer coaches than coaches have pupils
+		if (coaches.contains(pupil, coach)) return false;
+		pupils.add(coach, pupil);
+		coaches.add(pupil, coach);
+		return true;
+	}
+	
+	/**
+	 * Removes the edge from the given coach to the given pupil.
+	 * @return True if the edge was in the graph
+	 */
+	boolean removeEdge(int coach, int pupil) {
+		if (!coaches.remove(pupil, coach)) return false;
+		pupils.remove(coach, pupil);
+		return true;
+	}
+	
+	/**
+	 * Adds the first count edges from coaches[i] to pupils[i], which must not
+	 * already be in the graph or repeat each other, all at once. Rather than going
+	 * through the delta buffer, this rebuilds the compressed rows with exactly
+	 * enough room for the new edges.
+	 */
+	void addEdges(int[] coaches, int[] pupils, int count) {
+		this.pupils.addAll(coaches, pupils, count);
+		this.coaches.addAll(pupils, coaches, count);
+	}
+	
+	/** Returns whether or not the given coach coaches the given pupil */
+	boolean hasEdge(int coach, int pupil) {
+		return coaches.contains(pupil, coach);
+	}
+	
+	/** Returns the number of pupils the given user coaches */
+	int pupilCount(int user) {
+		return pupils.degree(user);
+	}
+	
+	/** Returns a new cursor over the pupils of the given user */
+	Cursor pupils(int user) {
+		return new Cursor().reset(pupils, null, user);
+	}
+	
+	/** Resets the given cursor to iterate over the pupils of the given user, and returns it */
+	Cursor pupils(int user, Cursor cursor) {
+		return cursor.reset(pupils, null, user);
+	}
+	
+	/** Returns a new cursor over the coaches of the given user */
+	Cursor coaches(int user) {
+		return new Cursor().reset(coaches, null, user);
+	}
+	
+	/**
+	 * Returns a new cursor over the neighbors (pupils, then coaches) of the given user.
+	 * Users who both coach and are coached by this user will appear twice.
+	 */
+	Cursor neighbors(int user) {
+		return neighbors(user, new Cursor());
+	}
+	
+	/**
+	 * Resets the given cursor to iterate over the neighbors of the given user,
+	 * as in {@link CoachGraph#neighbors(int)}, and returns it.
+	 */
+	Cursor neighbors(int user, Cursor cursor) {
+		return cursor.reset(pupils, coaches, user);
+	}
+	
+	/**
+	 * Iterates over the user IDs in up to two adjacency lists for a user. 
+	 * Cursors can be reset and reused, so iteration doesn't need to allocate.
+	 * The graph should not be modified while a cursor is in use.
+	 */
+	static final class Cursor {
+		private Adjacency current, following;
+		private int user;
+		private int position, end;
+		private int node = -1;
+		
+		Cursor reset(Adjacency first, Adjacency second, int user) {
+			this.user = user;
+			this.following = second;
+			start(first);
+			return this;
+		}
+		
+		private void start(Adjacency adjacency) {
+			current = adjacency;
+			if (user < adjacency.rowStart.length) {
+				position = adjacency.rowStart[user];
+				end = position + adjacency.rowLength[user];
+			} else {
+				position = end = 0;
+			}
+			node = user < adjacency.head.length ? adjacency.head[user] : -1;
+		}
+		
+		/** Returns the next user ID, or -1 if there are none left */
+		int next() {
+			while (current != null) {
+				while (position < end) {
+					int target = current.targets[position++];
+					if (target >= 0) return target;
+				}
+				while (node >= 0) {
+					int target = current.deltaTarget[node];
+					node = current.deltaNext[node];
+					if (target >= 0) return target;
+				}
+				if (following == null) {
+					current = null;
+				} else {
+					start(following);
+					following = null;
+				}
+			}
+			return -1;
+		}
+	}
+	
+	// The edges in one direction, from each user to a list of other users
+	private static class Adjacency {
+		// Compressed rows: each user's row is the rowLength[user] slots of targets
+		// from rowStart[user]. Of the first used slots, unused ones belong to no row.
+		int[] rowStart = new int[0];
+		int[] rowLength = new int[0];
+		int[] targets = new int[0];
+		int used, unused;
+		
+		// Edges added since the last compaction
+		int[] head = new int[0];
+		int[] deltaTarget = new int[16];
+		int[] deltaNext = new int[16];
+		int deltaSize;
+		
+		// The users whose rows have changed since the last compaction
+		int[] dirty = new int[16];
+		int dirtyCount;
+		boolean[] isDirty = new boolean[0];
+		
+		// The number of live edges for each user, and removed edges in total
+		int[] degree = new int[0];
+		int removed;
+		
+		// Hash indexes for rows of at least INDEX_DEGREE edges, or null. Once a row
+		// has one, it keeps it until the next compaction.
+		RowIndex[] index = new RowIndex[0];
+		
+		void add(int user, int target) {
+			ensureUser(user);
+			if (deltaSize == deltaTarget.length) {
+				deltaTarget = Arrays.copyOf(deltaTarget, deltaSize * 2);
+				deltaNext = Arrays.copyOf(deltaNext, deltaSize * 2);
+			}
+			deltaTarget[deltaSize] = target;
+			deltaNext[deltaSize] = head[user];
+			int node = deltaSize++;
+			head[user] = node;
+			degree[user]++;
+			markDirty(user);
+			if (index[user] != null) {
+				index[user].put(target, ~node);
+			} else if (degree[user] >= INDEX_DEGREE) {
+				index[user] = buildIndex(user);
+			}
+			compactIfNeeded();
+		}
+		
+		void addAll(int[] users, int[] targets, int count) {
+			int max = -1;
+			for (int i = 0; i < count; i++) max = Math.max(max, users[i]);
+			if (max < 0) return;
+			ensureUser(max);
+			for (int i = 0; i < count; i++) degree[users[i]]++;
+			rebuild(users, targets, count);
+		}
+		
+		boolean contains(int user, int target) {
+			if (degree(user) == 0) return false;
+			if (index[user] != null) return index[user].get(target) != RowIndex.MISSING;
+			for (int i = rowStart[user], end = i + rowLength[user]; i < end; i++) {
+				if (targets[i] == target) return true;
+			}
+			for (int node = head[user]; node >= 0; node = deltaNext[node]) {
+				if (deltaTarget[node] == target) return true;
+			}
+			return false;
+		}
+		
+		boolean remove(int user, int target) {
+			if (degree(user) == 0) return false;
+			if (!removeFrom(user, target)) return false;
+			degree[user]--;
+			removed++;
+			markDirty(user);
+			compactIfNeeded();
+			return true;
+		}
+		
+		private boolean removeFrom(int user, int target) {
+			if (index[user] != null) {
+				int location = index[user].remove(target);
+				if (location == RowIndex.MISSING) return false;
+				if (location >= 0) {
+					targets[location] = -1;
+				} else {
+					deltaTarget[~location] = -1;
+				}
+				return true;
+			}
+			for (int i = rowStart[user], end = i + rowLength[user]; i < end; i++) {
+				if (targets[i] == target) {
+					targets[i] = -1;
+					return true;
+				}
+			}
+			for (int node = head[user]; node >= 0; node = deltaNext[node]) {
+				if (deltaTarget[node] == target) {
+					deltaTarget[node] = -1;
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		int degree(int user) {
+			return user < degree.length ? degree[user] : 0;
+		}
+		
+		private void ensureUser(int user) {
+			if (user < head.length) return;
+			int length = Math.max(user + 1, head.length * 2);
+			int oldLength = head.length;
+			head = Arrays.copyOf(head, length);
+			Arrays.fill(head, oldLength, length, -1);
+			rowStart = Arrays.copyOf(rowStart, length);
+			rowLength = Arrays.copyOf(rowLength, length);
+			isDirty = Arrays.copyOf(isDirty, length);
+			degree = Arrays.copyOf(degree, length);
+			index = Arrays.copyOf(index, length);
+		}
+		
+		private void markDirty(int user) {
+			if (isDirty[user]) return;
+			isDirty[user] = true;
+			if (dirtyCount == dirty.length) dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+			dirty[dirtyCount++] = user;
+		}
+		
+		// Indexes the row of the given user, with compressed positions as they are,
+		// and delta nodes complemented, so they are negative
+		private RowIndex buildIndex(int user) {
+			RowIndex row = new RowIndex(degree[user]);
+			for (int i = rowStart[user], end = i + rowLength[user]; i < end; i++) {
+				if (targets[i] >= 0) row.put(targets[i], i);
+			}
+			for (int node = head[user]; node >= 0; node = deltaNext[node]) {
+				if (deltaTarget[node] >= 0) row.put(deltaTarget[node], ~node);
+			}
+			return row;
+		}
+		
+		private void compactIfNeeded() {
+			// Amortize the cost of rewriting the rows over at least as many changes
+			if (deltaSize + removed > Math.max(1024, used - unused)) compact();
+		}
+		
+		// Merges the delta buffer into the rows which changed, and drops their removed
+		// edges, so this takes time proportional to their lengths rather than the number
+		// of users. A row that shrank is rewritten in place, and one that grew is moved
+		// to the end of targets. Once the rows that moved have left as many unused slots
+		// as there are edges, every row is packed together again.
+		private void compact() {
+			for (int i = 0; i < dirtyCount; i++) {
+				int user = dirty[i];
+				isDirty[user] = false;
+				int from = rowStart[user], oldLength = rowLength[user], length = degree[user];
+				int start = from;
+				if (length > oldLength) {
+					if (used + length > targets.length) {
+						targets = Arrays.copyOf(targets, Math.max(used + length, 2 * targets.length));
+					}
+					start = used;
+					used += length;
+					unused += oldLength;
+				} else {
+					unused += oldLength - length;
+				}
+				int end = copyRow(user, from, oldLength, targets, start);
+				rowStart[user] = start;
+				rowLength[user] = end - start;
+				index[user] = length < INDEX_DEGREE ? null : buildIndex(user);
+			}
+			dirtyCount = 0;
+			deltaSize = 0;
+			removed = 0;
+			if (unused > used - unused) rebuild(null, null, 0);
+		}
+		
+		// Packs every row together again, with the given new edges (which are already
+		// counted in degree) at the ends of their users' rows
+		private void rebuild(int[] addedUsers, int[] addedTargets, int count) {
+			int users = head.length;
+			int[] newStart = new int[users];
+			int total = 0;
+			for (int user = 0; user < users; user++) {
+				newStart[user] = total;
+				total += degree[user];
+			}
+			
+			int[] newTargets = new int[total];
+			int[] end = new int[users];
+			for (int user = 0; user < users; user++) {
+				end[user] = copyRow(user, rowStart[user], rowLength[user], newTargets, newStart[user]);
+				isDirty[user] = false;
+			}
+			
+			if (count > 0) {
+				// The new edges go at the end of each row, in order
+				for (int i = 0; i < count; i++) {
+					newTargets[end[addedUsers[i]]++] = addedTargets[i];
+				}
+			}
+			
+			rowStart = newStart;
+			for (int user = 0; user < users; user++) rowLength[user] = end[user] - newStart[user];
+			targets = newTargets;
+			used = total;
+			unused = 0;
+			dirtyCount = 0;
+			deltaSize = 0;
+			removed = 0;
+			
+			// Every edge has moved, so rebuild the indexes, and drop them for rows
+			// which have shrunk
+			for (int user = 0; user < users; user++) {
+				index[user] = degree[user] < INDEX_DEGREE ? null : buildIndex(user);
+			}
+		}
+		
+		// Copies the live edges of a user's row, from the given slots of targets and
+		// then its delta list, to the given position of the given array, which may be
+		// the same slots, and empties the delta list. Returns where the copy ends.
+		private int copyRow(int user, int from, int length, int[] to, int start) {
+			int i = start;
+			for (int j = from; j < from + length; j++) {
+				if (targets[j] >= 0) to[i++] = targets[j];
+			}
+			// The delta list is newest-first, so add it backwards to keep insertion order
+			int deltaStart = i;
+			for (int node = head[user]; node >= 0; node = deltaNext[node]) {
+				if (deltaTarget[node] >= 0) to[i++] = deltaTarget[node];
+			}
+			reverse(to, deltaStart, i);
+			head[user] = -1;
+			return i;
+		}
+		
+		private static void reverse(int[] array, int from, int to) {
+			for (to--; from < to; from++, to--) {
+				int temp = array[from];
+				array[from] = array[to];
+				array[to] = temp;
+			}
+		}
+	}
+	
+	// An open-addressing hash map from the targets in one row to where they are
+	// stored, packed into longs as target << 32 | location, where EMPTY marks unused slots
+	private static final class RowIndex {
+		static final int MISSING = Integer.MIN_VALUE;
+		private static final long EMPTY = -1;
+		
+		private long[] table;
+		private int size;
+		
+		RowIndex(int expected) {
+			table = newTable(Integer.highestOneBit(Math.max(8, expected) * 4 - 1));
+		}
+		
+		/** Returns where the given target is stored, or MISSING */
+		int get(int target) {
+			long entry = table[slot(table, target)];
+			return entry == EMPTY ? MISSING : (int) entry;
+		}
+		
+		void put(int target, int location) {
+			table[slot(table, target)] = ((long) target << 32) | (location & 0xFFFFFFFFL);
+			if (++size * 2 > table.length) rehash(table.length * 2);
+		}
+		
+		/** Removes the given target, and returns where it was stored, or MISSING */
+		int remove(int target) {
+			int mask = table.length - 1;
+			int hole = slot(table, target);
+			long entry = table[hole];
+			if (entry == EMPTY) return MISSING;
+			size--;
+			
+			// Shift back any entries that probed past this slot
+			for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+				int home = hash((int) (table[i] >>> 32)) & mask;
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					table[hole] = table[i];
+					hole = i;
+				}
+			}
+			table[hole] = EMPTY;
+			return (int) entry;
+		}
+		
+		private void rehash(int length) {
+			long[] old = table;
+			table = newTable(length);
+			for (long entry : old) {
+				if (entry != EMPTY) table[slot(table, (int) (entry >>> 32))] = entry;
+			}
+		}
+		
+		// Finds the slot containing target, or the empty slot where it belongs
+		private static int slot(long[] table, int target) {
+			int mask = table.length - 1;
+			int i = hash(target) & mask;
+			while (table[i] != EMPTY && (int) (table[i] >>> 32) != target) i = (i + 1) & mask;
+			return i;
+		}
+		
+		private static int hash(int target) {
+			int h = target * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+		
+		private static long[] newTable(int length) {
+			long[] table = new long[length];
+			Arrays.fill(table, EMPTY);
+			return table;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Collects new users and coaching edges for a {@link Population} from any number
+ * of threads at once, and then adds them all in one {@link ConcurrentIngestor#commit()}.
+ *
+ * {@link ConcurrentIngestor#createUser(String)} hands out user IDs with an atomic
+ * counter, and {@link ConcurrentIngestor#addCoach(int, int)} merges the new users'
+ * infections as it goes, with a lock-free {@link ConcurrentUnionFind}, remembering
+ * each edge that joined two of them as a tree edge of the spanning forest. Users and
+ * edges are appended to buffers striped by thread, so threads rarely wait on each other.
+ * Committing then only has to sort the edges into the graph and create each infection
+ * once, as {@link Population#bulkLoad(String[], int[], int[])} does, without another
+ * union-find pass. Edges to users who were already in the population go through
+ * {@link User#addCoach(User, User)} when committing.
+ *
+ * The population itself is no safer to use from several threads than before, so
+ * it must not be changed between creating an ingestor and committing it. To keep
+ * ingesting, create a new ingestor after each commit.
+ */
+public final class ConcurrentIngestor {
+
+	private final Population population;
+	// The ID of the first new user
+	private final int first;
+	private final AtomicInteger created = new AtomicInteger();
+	private final ConcurrentUnionFind components = new ConcurrentUnionFind();
+	private final Stripe[] stripes;
+
+	// Ingesting threads share the read lock, so commit can wait for them to finish
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private boolean committed;
+
+	// One thread's share of the new users and edges
+	private static final class Stripe {
+		int[] userIDs = new int[16];
+		String[] userNames = new String[16];
+		int users;
+		// Edges are stored as in Population#bulkLoad: coach << 32 | pupil
+		long[] edges = new long[16], treeEdges = new long[16], existingEdges = new long[0];
+		int edgeCount, treeCount, existingCount;
+
+		synchronized void addUser(int id, String userName) {
+			if (users == userIDs.length) {
+				userIDs = Arrays.copyOf(userIDs, users * 2);
+				userNames = Arrays.copyOf(userNames, users * 2);
+			}
+			userIDs[users] = id;
+			userNames[users++] = userName;
+		}
+
+		synchronized void addEdge(long edge, boolean tree) {
+			if (edgeCount == edges.length) edges = Arrays.copyOf(edges, edgeCount * 2);
+			edges[edgeCount++] = edge;
+			if (tree) {
+				if (treeCount == treeEdges.length) treeEdges = Arrays.copyOf(treeEdges, treeCount * 2);
+				treeEdges[treeCount++] = edge;
+			}
+		}
+
+		synchronized void addExistingEdge(long edge) {
+			if (existingCount == existingEdges.length) {
+				existingEdges = Arrays.copyOf(existingEdges, Math.max(16, existingCount * 2));
+			}
+			existingEdges[existingCount++] = edge;
+		}
+	}
+
+	/**
+	 * Creates an ingestor for the given population, with enough stripes
+	 * for every available processor.
+	 */
+	public ConcurrentIngestor(Population population) {
+		this(population, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates an ingestor for the given population, whose users and edges
+	 * are split into at least the given number of stripes.
+	 */
+	public ConcurrentIngestor(Population population, int stripes) {
+		if (stripes < 1) throw new IllegalArgumentException("Stripes must be positive");
+		this.population = population;
+		this.first = population.userIDLimit();
+		int length = 1;
+		while (length < stripes) length <<= 1;
+		this.stripes = new Stripe[length];
+		for (int i = 0; i < this.stripes.length; i++) this.stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Creates a new user, returning the ID they will have once committed.
+	 * Safe to call from any thread.
+	 */
+	public int createUser(String userName) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			int id = created.getAndIncrement();
+			if (id >= Integer.MAX_VALUE - first) {
+				created.decrementAndGet();
+				throw new IllegalStateException("Too many users");
+			}
+			stripe().addUser(id, userName);
+			return first + id;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds an edge from the given coach to the given pupil, who can each be
+	 * a user created by this ingestor or an existing user of the population.
+	 * Safe to call from any thread.
+	 */
+	public void addCoach(int coachID, int pupilID) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			checkID(coachID);
+			checkID(pupilID);
+			if (coachID == pupilID) return;
+			long edge = ((long) coachID << 32) | pupilID;
+			if (coachID >= first && pupilID >= first) {
+				stripe().addEdge(edge, components.union(coachID - first, pupilID - first));
+			} else {
+				stripe().addExistingEdge(edge);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns whether or not the given users, who must both have been created by
+	 * this ingestor, are already connected by the edges added to it.
+	 * Safe to call from any thread.
+	 */
+	public boolean isConnected(int userID1, int userID2) {
+		checkID(userID1);
+		checkID(userID2);
+		if (userID1 < first || userID2 < first) {
+			throw new IllegalArgumentException("Users must be created by this ingestor");
+		}
+		return components.connected(userID1 - first, userID2 - first);
+	}
+
+	/** Returns the number of users created so far */
+	public int countUsers() {
+		return created.get();
+	}
+
+	/**
+	 * Waits for any calls in progress to finish, and then adds every user and
+	 * edge to the population. This can only be called once, after which the
+	 * ingestor can't be used any more.
+	 * @return The new users, in order of ID
+	 * @throws IllegalStateException If the population gained users some other
+	 * way since this ingestor was created
+	 */
+	public User[] commit() {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			committed = true;
+			if (population.userIDLimit() != first) {
+				throw new IllegalStateException("Population changed during ingestion");
+			}
+
+			int count = created.get(), edgeCount = 0, treeCount = 0;
+			String[] userNames = new String[count];
+			for (Stripe stripe : stripes) {
+				for (int i = 0; i < stripe.users; i++) userNames[stripe.userIDs[i]] = stripe.userNames[i];
+				edgeCount += stripe.edgeCount;
+				treeCount += stripe.treeCount;
+			}
+			long[] edges = new long[edgeCount], treeEdges = new long[treeCount];
+			edgeCount = treeCount = 0;
+			for (Stripe stripe : stripes) {
+				System.arraycopy(stripe.edges, 0, edges, edgeCount, stripe.edgeCount);
+				edgeCount += stripe.edgeCount;
+				System.arraycopy(stripe.treeEdges, 0, treeEdges, treeCount, stripe.treeCount);
+				treeCount += stripe.treeCount;
+				stripe.edges = stripe.treeEdges = null;
+			}
+			int[] roots = new int[count];
+			for (int i = 0; i < count; i++) roots[i] = components.find(i);
+
+			User[] users = population.bulkLoad(userNames, edges, edgeCount, treeEdges, treeCount, roots);
+			for (Stripe stripe : stripes) {
+				for (int i = 0; i < stripe.existingCount; i++) {
+					long edge = stripe.existingEdges[i];
+					User.addCoach(population.getUser((int) (edge >>> 32)), population.getUser((int) edge));
+				}
+			}
+			return users;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Stripe stripe() {
+		long thread = Thread.currentThread().getId();
+		return stripes[(int) (thread ^ (thread >>> 32)) & (stripes.length - 1)];
+	}
+
+	private void checkOpen() {
+		if (committed) throw new IllegalStateException("Ingestor already committed");
+	}
+
+	private void checkID(int id) {
+		if (id >= first ? id - first >= created.get() : population.getUser(id) == null) {
+			throw new IllegalArgumentException("No such user: " + id);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.khanacademy.infection;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A union-find over the integers from 0 up, which any number of threads can
+ * use at once without locking.
+ *
+ * Parents are stored in chunks of atomic ints, which are allocated the first time
+ * they're touched, so the structure grows without ever copying. Each entry holds
+ * its parent plus one, or zero for a root, so a new chunk starts out with every
+ * element in its own set. Roots are linked with a compare-and-set, always under
+ * the root with the higher (random) priority, so concurrent links can't make a cycle
+ * and trees stay shallow in expectation. {@link ConcurrentUnionFind#find(int)}
+ * halves paths with compare-and-set too, which only ever moves an entry closer to
+ * its root, so losing that race is harmless.
+ */
+final class ConcurrentUnionFind {
+
+	private final static int CHUNK_BITS = 16;
+	private final static int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	private final AtomicReferenceArray<AtomicIntegerArray> chunks =
+			new AtomicReferenceArray<>(1 << (31 - CHUNK_BITS));
+
+	/** Returns the root of the set containing i */
+	int find(int i) {
+		while (true) {
+			int parent = parent(i);
+			if (parent == i) return i;
+			int grandparent = parent(parent);
+			if (grandparent != parent) {
+				chunk(i).compareAndSet(i & CHUNK_MASK, parent + 1, grandparent + 1);
+			}
+			i = grandparent;
+		}
+	}
+
+	/**
+	 * Merges the sets containing a and b.
+	 * @return True if this call joined them, or false if they were already
+	 * in the same set. Exactly one of any number of concurrent calls joining
+	 * the same two sets returns true.
+	 */
+	boolean union(int a, int b) {
+		while (true) {
+			a = find(a);
+			b = find(b);
+			if (a == b) return false;
+			if (before(b, a)) {
+				int temp = a;
+				a = b;
+				b = temp;
+			}
+			// If a is still a root, it joins b's set; otherwise someone
+			// else got there first, so find the roots again
+			if (chunk(a).compareAndSet(a & CHUNK_MASK, 0, b + 1)) return true;
+		}
+	}
+
+	/** Returns whether or not a and b were in the same set at some point during the call */
+	boolean connected(int a, int b) {
+		while (true) {
+			a = find(a);
+			b = find(b);
+			if (a == b) return true;
+			// If a is still a root, they were in different sets after b's find
+			if (parent(a) == a) return false;
+		}
+	}
+
+	private int parent(int i) {
+		int entry = chunk(i).get(i & CHUNK_MASK);
+		return entry == 0 ? i : entry - 1;
+	}
+
+	private AtomicIntegerArray chunk(int i) {
+		int index = i >>> CHUNK_BITS;
+		AtomicIntegerArray chunk = chunks.get(index);
+		if (chunk == null) {
+			chunks.compareAndSet(index, null, new AtomicIntegerArray(1 << CHUNK_BITS));
+			chunk = chunks.get(index);
+		}
+		return chunk;
+	}
+
+	// A fixed total order on elements, in which roots always link to later ones
+	private static boolean before(int a, int b) {
+		int pa = priority(a), pb = priority(b);
+		return pa < pb || (pa == pb && a < b);
+	}
+
+	private static int priority(int i) {
+		int h = i * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
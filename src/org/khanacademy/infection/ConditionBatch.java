@@ -0,0 +1,131 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates up to 64 conditions for a batch of user IDs at once, for
+ * {@link Population#evaluateConditions(int[], String[], ForkJoinPool)}.
+ *
+ * The conditions are resolved to IDs once for the whole batch, and users are
+ * visited in order of ID, so users who were created together, and tend to be in
+ * the same infections, are looked at together. The infection's conditions are only
+ * read once for each run of users in the same infection, and each user only costs
+ * a lookup of their root and a probe of the override sets which aren't empty.
+ * Large batches can be split into ranges of IDs and evaluated in parallel, since
+ * nothing is written but the results.
+ */
+final class ConditionBatch {
+
+	// The number of users below which we don't split a range any further
+	private final static int CHUNK = 1 << 14;
+
+	private final Population population;
+	private final int[] userIDs;
+	// The user IDs, each shifted left 32 bits and or-ed with its index, in
+	// order of ID, or null if they were already in order
+	private final long[] order;
+	// The registry ID of each condition, or -1 if it has never been used
+	private final int[] conditions;
+	// The override sets which aren't empty, and the bit of the condition for each
+	private final UserSet[] overrides;
+	private final long[] overrideBits;
+	private final long[] results;
+
+	private ConditionBatch(Population population, int[] userIDs, String[] names) {
+		this.population = population;
+		this.userIDs = userIDs;
+		this.results = new long[userIDs.length];
+
+		ConditionRegistry registry = population.getConditions();
+		conditions = new int[names.length];
+		int count = 0;
+		for (int i = 0; i < names.length; i++) {
+			conditions[i] = registry.id(names[i]);
+			if (conditions[i] >= 0 && registry.overrides(conditions[i]).cardinality() > 0) count++;
+		}
+		overrides = new UserSet[count];
+		overrideBits = new long[count];
+		count = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (conditions[i] < 0 || registry.overrides(conditions[i]).cardinality() == 0) continue;
+			overrides[count] = registry.overrides(conditions[i]);
+			overrideBits[count++] = 1L << i;
+		}
+
+		long[] order = null;
+		for (int i = 1; i < userIDs.length; i++) {
+			if (userIDs[i] >= userIDs[i - 1]) continue;
+			order = new long[userIDs.length];
+			for (int j = 0; j < userIDs.length; j++) order[j] = ((long) userIDs[j] << 32) | j;
+			Arrays.sort(order);
+			break;
+		}
+		this.order = order;
+	}
+
+	/**
+	 * Returns a mask for each of the given users, where bit j is set if they have
+	 * the j-th condition. Deleted and unknown users have no conditions. If pool is
+	 * not null, batches larger than a chunk are evaluated on it in parallel.
+	 */
+	static long[] evaluate(Population population, int[] userIDs, String[] conditions, ForkJoinPool pool) {
+		if (conditions.length > 64) throw new IllegalArgumentException("At most 64 conditions: " + conditions.length);
+		ConditionBatch batch = new ConditionBatch(population, userIDs, conditions);
+		if (pool == null || userIDs.length <= CHUNK) {
+			batch.evaluate(0, userIDs.length, false);
+		} else {
+			pool.invoke(batch.new Task(0, userIDs.length));
+		}
+		return batch.results;
+	}
+
+	// Evaluates the users in the given range of the order. If shared, other
+	// threads are reading the population too, so paths can't be compressed.
+	private void evaluate(int from, int to, boolean shared) {
+		Infection lastRoot = null;
+		long groupMask = 0;
+		for (int i = from; i < to; i++) {
+			int index = order == null ? i : (int) order[i];
+			int id = order == null ? userIDs[i] : (int) (order[i] >> 32);
+			User user = population.getUser(id);
+			if (user == null) continue;
+
+			Infection root = shared ? user.peekRoot() : user.root();
+			if (root != lastRoot) {
+				lastRoot = root;
+				groupMask = 0;
+				for (int j = 0; j < conditions.length; j++) {
+					if (conditions[j] >= 0 && root.hasGroupCondition(conditions[j])) groupMask |= 1L << j;
+				}
+			}
+			long mask = groupMask;
+			for (int j = 0; j < overrides.length; j++) {
+				if (overrides[j].contains(id)) mask ^= overrideBits[j];
+			}
+			results[index] = mask;
+		}
+	}
+
+	// Evaluates a range of the order, splitting it in half until it's small
+	@SuppressWarnings("serial")
+	private class Task extends RecursiveAction {
+		private final int from, to;
+
+		Task(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				evaluate(from, to, true);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Task(from, middle), new Task(middle, to));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.khanacademy.infection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable index of which users had which conditions, for answering lookups
+ * as fast as possible from any number of threads, such as in a {@link LookupServer}.
+ *
+ * Each condition is stored as a dense bitset over user IDs, so a lookup is one
+ * array read and a bit test, with no {@link User} objects involved. Conditions are
+ * numbered as in the {@link Population} they came from, so IDs looked up with
+ * {@link ConditionIndex#conditionID(String)} stay the same when the index is rebuilt.
+ * Since the index doesn't change, it must be rebuilt to see newer infections.
+ */
+public final class ConditionIndex {
+
+	private final int limit;
+	private final long version;
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final String[] names;
+	// A bitset for each condition, or null if no one had it
+	private final long[][] words;
+
+	private ConditionIndex(int limit, long version, String[] names) {
+		this.limit = limit;
+		this.version = version;
+		this.names = names;
+		this.words = new long[names.length][];
+		for (int i = 0; i < names.length; i++) ids.put(names[i], i);
+	}
+
+	/**
+	 * Builds an index of the current conditions of the given population, in time
+	 * proportional to the number of infections and users with each condition.
+	 */
+	public static ConditionIndex build(Population population) {
+		ConditionRegistry registry = population.getConditions();
+		int limit = population.userIDLimit();
+		String[] names = new String[registry.size()];
+		for (int i = 0; i < names.length; i++) names[i] = registry.name(i);
+		ConditionIndex index = new ConditionIndex(limit, population.getVersion(), names);
+
+		Set<Infection> infections = population.getInfections();
+		for (int condition = 0; condition < names.length; condition++) {
+			if (registry.count(condition) == 0) continue;
+			long[] words = new long[Snapshot.words(limit)];
+			for (Infection infection : infections) {
+				if (infection.hasGroupCondition(condition)) infection.markUsers(words);
+			}
+			// Overrides flip the infection's condition for just that user
+			for (int id : registry.overrides(condition).toArray()) words[id >>> 6] ^= 1L << id;
+			index.words[condition] = words;
+		}
+		return index;
+	}
+
+	/**
+	 * Builds an index of the conditions in the given snapshot, which takes time
+	 * proportional to the number of conditions times the number of user IDs.
+	 */
+	public static ConditionIndex build(Snapshot snapshot) {
+		int limit = snapshot.userIDLimit();
+		String[] names = new String[snapshot.conditionCount()];
+		for (int i = 0; i < names.length; i++) names[i] = snapshot.conditionName(i);
+		ConditionIndex index = new ConditionIndex(limit, snapshot.generation(), names);
+
+		for (int condition = 0; condition < names.length; condition++) {
+			if (snapshot.countUsersWithCondition(names[condition]) == 0) continue;
+			long[] words = new long[Snapshot.words(limit)];
+			for (int i = 0; i < words.length; i++) words[i] = snapshot.conditionWord(condition, i);
+			index.words[condition] = words;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the version of the population when this index was built,
+	 * or the generation of the snapshot it was built from.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/** Returns one more than the largest user ID in the index */
+	public int userIDLimit() {
+		return limit;
+	}
+
+	/** Returns the number of conditions in the index */
+	public int countConditions() {
+		return names.length;
+	}
+
+	/** Returns the ID of the given condition, or -1 if it had never been used */
+	public int conditionID(String condition) {
+		Integer id = ids.get(condition);
+		return id == null ? -1 : id;
+	}
+
+	/** Returns the name of the condition with the given ID */
+	public String conditionName(int conditionID) {
+		return names[conditionID];
+	}
+
+	/**
+	 * Returns whether or not the given user had the condition with the given ID.
+	 * Unknown users and conditions, including -1, never have a condition.
+	 */
+	public boolean hasCondition(int userID, int conditionID) {
+		if (userID < 0 || userID >= limit || conditionID < 0 || conditionID >= words.length) return false;
+		long[] bits = words[conditionID];
+		return bits != null && (bits[userID >>> 6] & (1L << userID)) != 0;
+	}
+
+	/** Returns whether or not the given user had the given condition */
+	public boolean hasCondition(int userID, String condition) {
+		return hasCondition(userID, conditionID(condition));
+	}
+}
@@ -0,0 +1,127 @@
+package org.khanacademy.infection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns the conditions used in a {@link Population} to small integer IDs,
+ * and keeps a {@link UserSet} of the users with an override for each condition. 
+ * A user has a condition if it is applied to their whole {@link Infection}, XOR
+ * they have an override for it, so checking a user's condition is a bit test.
+ * The number of users with each condition is also kept up to date.
+ * 
+ * For conditions which have been ramped up with {@link Population#rampInfection(String, int, int)},
+ * the registry also keeps a {@link SizeHistogram} of the infections where no one has the
+ * condition yet, which {@link Population} and {@link Infection} keep up to date as
+ * infections change size or conditions.
+ */
+final class ConditionRegistry {
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final List<UserSet> overrides = new ArrayList<>();
+	private int[] counts = new int[0];
+	
+	// The infections that lack each condition, for the conditions listed in indexed,
+	// and null for the rest
+	private final List<SizeHistogram<Infection>> uninfected = new ArrayList<>();
+	private int[] indexed = new int[0];
+	
+	/** Returns the ID of the given condition, or -1 if it has never been used */
+	int id(String condition) {
+		Integer id = ids.get(condition);
+		return id == null ? -1 : id;
+	}
+	
+	/** Returns the ID of the given condition, assigning it one if needed */
+	int intern(String condition) {
+		Integer id = ids.get(condition);
+		if (id != null) return id;
+		
+		id = names.size();
+		ids.put(condition, id);
+		names.add(condition);
+		overrides.add(new UserSet());
+		uninfected.add(null);
+		if (id >= counts.length) counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+		return id;
+	}
+	
+	/** Returns the number of conditions which have been interned */
+	int size() {
+		return names.size();
+	}
+	
+	/** Returns the name of the condition with the given ID */
+	String name(int id) {
+		return names.get(id);
+	}
+	
+	/** Returns the users with an override for the condition with the given ID */
+	UserSet overrides(int id) {
+		return overrides.get(id);
+	}
+	
+	/** Returns the number of users with the condition with the given ID */
+	int count(int id) {
+		return counts[id];
+	}
+	
+	/** Returns the number of users with the given condition */
+	int count(String condition) {
+		int id = id(condition);
+		return id < 0 ? 0 : counts[id];
+	}
+	
+	/** Adjusts the number of users with the condition with the given ID */
+	void addCount(int id, int delta) {
+		counts[id] += delta;
+	}
+	
+	/**
+	 * Returns the (root) infections where no user has the condition with the
+	 * given ID, by size, building the index from all of the given infections
+	 * the first time, and keeping it up to date from then on.
+	 */
+	SizeHistogram<Infection> uninfected(int id, Iterable<Infection> infections) {
+		SizeHistogram<Infection> index = uninfected.get(id);
+		if (index == null) {
+			index = new SizeHistogram<>();
+			for (Infection infection : infections) {
+				if (infection.lacksCondition(id)) index.add(infection);
+			}
+			uninfected.set(id, index);
+			indexed = Arrays.copyOf(indexed, indexed.length + 1);
+			indexed[indexed.length - 1] = id;
+		}
+		return index;
+	}
+	
+	/**
+	 * Updates the indexes of uninfected infections for the given root infection,
+	 * whose size was oldSize when they were last updated for it (or which is new),
+	 * and whose size or conditions may have changed since.
+	 */
+	void reindex(Infection root, int oldSize) {
+		for (int id : indexed) reindex(root, oldSize, id);
+	}
+	
+	/**
+	 * Updates the index of uninfected infections for the condition with the
+	 * given ID, if there is one, as in {@link ConditionRegistry#reindex(Infection, int)}.
+	 */
+	void reindex(Infection root, int oldSize, int id) {
+		SizeHistogram<Infection> index = uninfected.get(id);
+		if (index == null) return;
+		index.remove(root, oldSize);
+		if (root.lacksCondition(id)) index.add(root);
+	}
+	
+	/** Removes an infection which is gone from the indexes, given its last size */
+	void unindex(Infection root, int oldSize) {
+		for (int id : indexed) uninfected.get(id).remove(root, oldSize);
+	}
+}
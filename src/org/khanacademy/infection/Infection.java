@@ -1,35 +1,200 @@
 package org.khanacademy.infection;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 
 import org.khanacademy.infection.SubsetSum.ICountable;
 
+/**
+ * Represents a group of connected {@link User}s, who should all
+ * share the same conditions.
+ * 
+ * Infections form a disjoint-set forest: when two infections are merged, 
+ * the smaller one is pointed at the larger one, which keeps all of the users. 
+ * Only the root of each tree is a "live" infection, and every public method 
+ * operates on the root, so a stale reference to an absorbed infection still
+ * behaves like the infection it was merged into.
+ * 
+ * Conditions are usually applied to a whole infection at once, so they are stored
+ * for the infection as a whole. A user has a condition if it is applied to their
+ * infection XOR they have an override for it in the {@link ConditionRegistry},
+ * so only partial infections, like {@link Infection#infectUpTo(String, int)},
+ * have to touch individual users.
+ */
 public class Infection implements ICountable {
 	
-	private final Set<User> users = new HashSet<>();
+	private final List<User> users = new ArrayList<>();
+	// Null for a standalone infection until it joins a user's population, which is
+	// the only time this changes
+	private Population population;
+	
+	// The infection this one was merged into, or itself if it is a root
+	private Infection parent = this;
+	
+	// The IDs of the conditions applied to this whole infection, or null for none,
+	// and the number of users with an override for each condition ID
+	private BitSet conditions;
+	private int[] overrides = new int[0];
+	
+	// The population's version when this infection was created or last resized,
+	// or -1 once it's gone, so a PopulationView can tell if it has changed since
+	long stamp;
+	
+	// This infection's user IDs as of memberStamp, which views share until it changes
+	private int[] members;
+	private long memberStamp = -1;
+	
+	/**
+	 * Creates an empty, standalone infection, which isn't in any population's
+	 * registry. Adding a user to it joins it to their infection, after which it
+	 * behaves like any stale reference to that infection.
+	 */
+	public Infection() {
+		stamp = -1;
+	}
+	
+	protected Infection(Population population, User user) {
+		this.population = population;
+		add(user);
+		population.infectionCreated(this);
+	}
+	
+	/**
+	 * Creates an infection of the given users, who must not be in any other
+	 * infection, and have no conditions.
+	 */
+	Infection(Population population, Collection<User> users) {
+		this.population = population;
+		for (User user : users) add(user);
+		population.infectionCreated(this);
+	}
+	
+	// Each user knows their index in their infection's list, so they can be
+	// removed without searching for them
+	private void add(User user) {
+		user.infectionIndex = users.size();
+		users.add(user);
+	}
+	
+	private boolean remove(User user) {
+		int index = user.infectionIndex;
+		if (index >= users.size() || users.get(index) != user) return false;
+		User last = users.remove(users.size() - 1);
+		if (last != user) {
+			users.set(index, last);
+			last.infectionIndex = index;
+		}
+		return true;
+	}
 	
 	public int size() {
-		return users.size();
+		return find().users.size();
+	}
+	
+	/**
+	 * Returns the IDs of this (root) infection's users, in an array which must not
+	 * be changed. The array is only copied again once the infection's stamp changes,
+	 * so views of a population only copy the infections that changed in between.
+	 */
+	int[] memberIDs() {
+		if (members == null || memberStamp != stamp) {
+			members = new int[users.size()];
+			for (int i = 0; i < members.length; i++) members[i] = users.get(i).getUserID();
+			memberStamp = stamp;
+		}
+		return members;
+	}
+	
+	// Sets the bit for each of this infection's user IDs in the given words
+	void markUsers(long[] words) {
+		for (User user : find().users) words[user.getUserID() >>> 6] |= 1L << user.getUserID();
+	}
+	
+	/**
+	 * Returns the root of this infection's tree, compressing the path
+	 * to it along the way, so that later lookups are (nearly) constant time.
+	 */
+	Infection find() {
+		Infection root = this;
+		while (root.parent != root) root = root.parent;
+		
+		Infection node = this;
+		while (node.parent != root) {
+			Infection next = node.parent;
+			node.parent = root;
+			node = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Returns the root of this infection's tree like {@link Infection#find()}, but
+	 * without changing anything, so any number of threads can call it at once.
+	 */
+	Infection peek() {
+		Infection root = this;
+		while (root.parent != root) root = root.parent;
+		return root;
 	}
 
 	/**
 	 * Adds the given user to this infection, combining its current
-	 * infection into this one.
+	 * infection into this one. The smaller of the two infections is always
+	 * merged into the larger, so afterwards this infection may no longer be
+	 * the root; use {@link User#getInfection()} to get the combined infection.
 	 * @param user
 	 */
 	public void addUser(User user) {
-		users.add(user);
+		Infection root = find();
+		Infection userInfection = user.root();
+		if (userInfection == root) return;
+		if (root.population != userInfection.population) {
+			// Only an empty, standalone infection can join another population
+			if (!root.users.isEmpty()) throw new IllegalArgumentException("User is in another population");
+			root.population = userInfection.population;
+			root.parent = userInfection;
+			return;
+		}
 		
-		Infection userInfection = user.getInfection();
-		if (userInfection != this) {
-			// TODO: optionally, we could update those users' conditions
-			// to make it homogeneous
-			for (User addition : userInfection.users) {
-				addition.setInfection(this);
-				users.add(addition);
+		// Union by size: only the smaller infection's users are moved, so
+		// each user is moved at most O(log n) times
+		Infection larger = root, smaller = userInfection;
+		if (larger.users.size() < smaller.users.size()) {
+			larger = userInfection;
+			smaller = root;
+		}
+		int largerSize = larger.users.size(), smallerSize = smaller.users.size();
+		mergeConditions(larger, smaller);
+		for (User moved : smaller.users) larger.add(moved);
+		smaller.users.clear();
+		smaller.parent = larger;
+		
+		population.infectionRemoved(smaller, smallerSize);
+		population.infectionResized(larger, largerSize);
+		// If either was waiting to split, the combined infection still needs to
+		if (population.isSplitPending(smaller)) population.splitLater(larger);
+	}
+	
+	// Moves the smaller infection's conditions into the larger one
+	private void mergeConditions(Infection larger, Infection smaller) {
+		ConditionRegistry registry = population.getConditions();
+		int length = Math.max(smaller.overrides.length, 
+				Math.max(length(larger.conditions), length(smaller.conditions)));
+		for (int condition = 0; condition < length; condition++) {
+			int overrides = smaller.overrides(condition);
+			if (larger.hasGroupCondition(condition) != smaller.hasGroupCondition(condition)) {
+				// The smaller infection's users now need the opposite overrides to
+				// keep the conditions they had
+				UserSet set = registry.overrides(condition);
+				for (User user : smaller.users) {
+					if (!set.remove(user.getUserID())) set.add(user.getUserID());
+				}
+				overrides = smaller.users.size() - overrides;
 			}
+			larger.addOverrides(condition, overrides);
 		}
 	}
 	
@@ -38,11 +203,27 @@ public class Infection implements ICountable {
 	 * optionally splits this infection if it's become broken up.
 	 */
 	public void deleteUser(User user) {
-		users.remove(user);
-		Iterator<User> iterator = users.iterator();
-		if (iterator.hasNext()) {
+		Infection root = find();
+		int oldSize = root.users.size();
+		if (!root.remove(user)) return;
+		root.removeConditions(user);
+		if (root.users.size() > 0) {
+			population.infectionResized(root, oldSize);
 			// removing this user may have split up the infection
-			prune(iterator.next());
+			if (population.getDeferSplits()) population.splitLater(root);
+			else root.prune(root.users.get(0));
+		} else {
+			population.infectionRemoved(root, oldSize);
+		}
+	}
+	
+	// Removes all of a departing user's conditions and overrides
+	private void removeConditions(User user) {
+		ConditionRegistry registry = population.getConditions();
+		for (int condition = 0; condition < registry.size(); condition++) {
+			boolean override = registry.overrides(condition).remove(user.getUserID());
+			if (override) addOverrides(condition, -1);
+			if (hasGroupCondition(condition) != override) registry.addCount(condition, -1);
 		}
 	}
 	
@@ -52,47 +233,246 @@ public class Infection implements ICountable {
 	 * @param root
 	 */
 	public void prune(User root) {
-		// Calculate the connected subgraph starting at root
-		Set<User> included = new HashSet<>();
-		addSubgraph(root, included);
+		if (population == null) return;
+		prune(root, false);
+	}
+	
+	/**
+	 * Splits this infection into its connected components, and rebuilds the
+	 * {@link SpanningForest}'s edges for them from scratch. This is how
+	 * infections marked by {@link Population#splitLater(Infection)} are split.
+	 */
+	void splitComponents() {
+		Infection infection = find();
+		if (infection.users.isEmpty()) return;
+		
+		// Forget the old edges: some tree edges may have been removed without
+		// replacements, and the traversal will find new ones
+		CoachGraph graph = population.getGraph();
+		SpanningForest forest = population.getForest();
+		CoachGraph.Cursor cursor = new CoachGraph.Cursor();
+		for (User user : infection.users) {
+			int id = user.getUserID();
+			graph.neighbors(id, cursor);
+			for (int neighbor = cursor.next(); neighbor >= 0; neighbor = cursor.next()) {
+				forest.cut(id, neighbor);
+			}
+		}
+		infection.prune(infection.users.get(0), true);
+	}
+	
+	// Prunes users no longer connected to root, optionally recording the edges
+	// the traversal followed as the tree edges of each component, and the rest
+	// as their replacements
+	private void prune(User root, boolean relink) {
+		Infection infection = find();
+		List<User> users = infection.users;
+		
+		// Label the connected subgraph starting at root as component 0
+		// This is O(n + e), so User.removeCoach and User.delete don't use it:
+		// they go through the population's SpanningForest instead
+		Traversal traversal = Traversal.begin(population.getGraph(), population.userIDLimit());
+		int components = 1;
+		if (traversal.visit(root.getUserID(), 0) < users.size()) {
+			// Label everyone who didn't make the cut with their own component
+			for (User user : users) {
+				if (traversal.visit(user.getUserID(), components) > 0) components++;
+			}
+		}
+		if (relink) {
+			SpanningForest forest = population.getForest();
+			for (User user : users) {
+				int parent = traversal.parent(user.getUserID());
+				if (parent >= 0) forest.add(user.getUserID(), parent);
+			}
+			CoachGraph.Cursor cursor = new CoachGraph.Cursor();
+			for (User user : users) {
+				int id = user.getUserID();
+				population.getGraph().neighbors(id, cursor);
+				for (int neighbor = cursor.next(); neighbor >= 0; neighbor = cursor.next()) {
+					forest.add(id, neighbor);
+				}
+			}
+		}
+		if (components == 1) return;
 		
-		// Figure out who didn't make the cut
-		Set<User> removed = new HashSet<>();
+		// Keep component 0, and sort the others into their own lists
+		List<List<User>> splits = new ArrayList<>(components - 1);
+		for (int i = 1; i < components; i++) splits.add(new ArrayList<User>());
+		int oldSize = users.size(), kept = 0;
 		for (User user : users) {
-			if (!included.contains(user)) {
-				removed.add(user);
+			int label = traversal.label(user.getUserID());
+			if (label == 0) {
+				user.infectionIndex = kept;
+				users.set(kept++, user);
+			} else {
+				splits.get(label - 1).add(user);
 			}
 		}
-		users.clear();
-		users.addAll(included);
+		users.subList(kept, oldSize).clear();
+		population.infectionResized(infection, oldSize);
+		
+		// Every part keeps the conditions applied to the whole infection, but
+		// we have to recount the overrides, where there are any
+		int[] mixed = infection.conditionsWithOverrides();
+		infection.recountOverrides(mixed);
+		ConditionRegistry registry = population.getConditions();
+		registry.reindex(infection, infection.users.size());
 		
 		// Spin these users off into new infections
-		while (removed.size() > 0) {
-			// Pop a user, create a new infection and find its members
-			User pop = removed.iterator().next();
-			Infection split = new Infection();
-			Set<User> connected = new HashSet<>();
-			addSubgraph(pop, connected);
-			split.users.addAll(connected);
+		for (List<User> connected : splits) {
+			Infection split = new Infection(population, connected);
 			for (User user : connected) {
 				user.setInfection(split);
 			}
-			
-			// Then remove these users and keep going
-			removed.removeAll(connected);
+			if (infection.conditions != null) split.conditions = (BitSet) infection.conditions.clone();
+			split.recountOverrides(mixed);
+			registry.reindex(split, split.users.size());
+		}
+	}
+	
+	/**
+	 * Moves the given users, who must be in this infection, into a new infection
+	 * of their own, with the same conditions. This takes time proportional to
+	 * the number of users moved, rather than the size of this infection.
+	 * @return The new infection
+	 */
+	Infection split(List<User> part) {
+		Infection infection = find();
+		int oldSize = infection.users.size();
+		for (User user : part) infection.remove(user);
+		population.infectionResized(infection, oldSize);
+		
+		Infection split = new Infection(population, part);
+		for (User user : part) user.setInfection(split);
+		if (infection.conditions != null) split.conditions = (BitSet) infection.conditions.clone();
+		
+		// Move over the overrides of just the users who left
+		ConditionRegistry registry = population.getConditions();
+		for (int condition : infection.conditionsWithOverrides()) {
+			UserSet set = registry.overrides(condition);
+			int count = 0;
+			for (User user : part) {
+				if (set.contains(user.getUserID())) count++;
+			}
+			infection.addOverrides(condition, -count);
+			split.addOverrides(condition, count);
+		}
+		registry.reindex(infection, infection.users.size());
+		registry.reindex(split, split.users.size());
+		return split;
+	}
+	
+	private int[] conditionsWithOverrides() {
+		int count = 0;
+		for (int n : overrides) if (n > 0) count++;
+		int[] mixed = new int[count];
+		for (int condition = 0, i = 0; condition < overrides.length; condition++) {
+			if (overrides[condition] > 0) mixed[i++] = condition;
+		}
+		return mixed;
+	}
+	
+	private void recountOverrides(int[] conditions) {
+		ConditionRegistry registry = population.getConditions();
+		for (int condition : conditions) {
+			UserSet set = registry.overrides(condition);
+			int count = 0;
+			for (User user : users) {
+				if (set.contains(user.getUserID())) count++;
+			}
+			addOverrides(condition, count - overrides(condition));
 		}
 	}
 
-	// Finds the connected subgraph starting at root
-	// O(n + e) isn't great, but presumably removing relationships and users 
-	// will be a rare operation
-	private static void addSubgraph(User root, Set<User> included) {
-		if (included.contains(root)) return;
+	boolean hasGroupCondition(int condition) {
+		return conditions != null && conditions.get(condition);
+	}
+	
+	private int overrides(int condition) {
+		return condition < overrides.length ? overrides[condition] : 0;
+	}
+	
+	private void addOverrides(int condition, int count) {
+		if (count == 0) return;
+		if (condition >= overrides.length) {
+			overrides = Arrays.copyOf(overrides, Math.max(condition + 1, overrides.length * 2));
+		}
+		overrides[condition] += count;
+	}
+	
+	private static int length(BitSet bits) {
+		return bits == null ? 0 : bits.length();
+	}
+	
+	/**
+	 * Returns whether or not no user in this infection has the condition
+	 * with the given ID. This takes constant time.
+	 */
+	boolean lacksCondition(int condition) {
+		Infection root = find();
+		// Everyone may have an override for a condition applied to the whole infection
+		int overrides = root.overrides(condition);
+		return root.hasGroupCondition(condition) ? overrides == root.users.size() : overrides == 0;
+	}
+	
+	/**
+	 * Returns whether or not the given user, who must be in this
+	 * infection, has the condition with the given ID.
+	 */
+	boolean hasCondition(User user, int condition) {
+		Infection root = find();
+		boolean override = population.getConditions().overrides(condition).contains(user.getUserID());
+		return root.hasGroupCondition(condition) != override;
+	}
+	
+	/**
+	 * Gives or removes the condition with the given ID for just the given
+	 * user, who must be in this infection.
+	 * @return True if the user's condition changed
+	 */
+	boolean setCondition(User user, int condition, boolean value) {
+		Infection root = find();
+		ConditionRegistry registry = population.getConditions();
+		UserSet set = registry.overrides(condition);
+		int id = user.getUserID();
+		boolean override = set.contains(id);
+		if ((root.hasGroupCondition(condition) != override) == value) return false;
 		
-		included.add(root);
-		for (User neighbor : root.neighbors()) {
-			addSubgraph(neighbor, included);
+		if (override) {
+			set.remove(id);
+			root.addOverrides(condition, -1);
+		} else {
+			set.add(id);
+			root.addOverrides(condition, 1);
 		}
+		registry.addCount(condition, value ? 1 : -1);
+		registry.reindex(root, root.users.size(), condition);
+		MutationLog log = population.getLog();
+		if (log != null) log.setUserCondition(id, registry.name(condition), value);
+		return true;
+	}
+	
+	// Gives or removes a condition for this whole (root) infection, which only
+	// has to touch individual users if some of them have overrides
+	private void setGroupCondition(int condition, boolean value) {
+		ConditionRegistry registry = population.getConditions();
+		int before = overrides(condition);
+		if (hasGroupCondition(condition)) before = users.size() - before;
+		
+		if (overrides(condition) > 0) {
+			UserSet set = registry.overrides(condition);
+			for (User user : users) set.remove(user.getUserID());
+			overrides[condition] = 0;
+		}
+		if (value) {
+			if (conditions == null) conditions = new BitSet();
+			conditions.set(condition);
+		} else if (conditions != null) {
+			conditions.clear(condition);
+		}
+		registry.addCount(condition, (value ? users.size() : 0) - before);
+		registry.reindex(this, users.size(), condition);
 	}
 
 	/**
@@ -100,8 +480,25 @@ public class Infection implements ICountable {
 	 * @param condition The condition to infect
 	 */
 	public void addCondition(String condition) {
-		for (User user : users) {
-			user.addCondition(condition);
+		// A standalone infection has no users to change
+		if (population == null) return;
+		Infection root = flushedRoot();
+		root.setGroupCondition(population.getConditions().intern(condition), true);
+		root.logCondition(condition, true);
+	}
+	
+	// Finds the root once any deferred splits are done, so a change to the whole
+	// infection only reaches the users still connected to it, and the user we log
+	// it under replays to the same infection
+	private Infection flushedRoot() {
+		population.flushSplits();
+		return find();
+	}
+	
+	private void logCondition(String condition, boolean value) {
+		MutationLog log = population.getLog();
+		if (log != null && !users.isEmpty()) {
+			log.setInfectionCondition(users.get(0).getUserID(), condition, value);
 		}
 	}
 
@@ -110,9 +507,12 @@ public class Infection implements ICountable {
 	 * @param condition The condition to remove
 	 */
 	public void removeCondition(String condition) {
-		for (User user : users) {
-			user.removeCondition(condition);
-		}
+		if (population == null) return;
+		int id = population.getConditions().id(condition);
+		if (id < 0) return;
+		Infection root = flushedRoot();
+		root.setGroupCondition(id, false);
+		root.logCondition(condition, false);
 	}
 
 	/**
@@ -121,32 +521,30 @@ public class Infection implements ICountable {
 	 * @param n The number of users to infect
 	 */
 	public void infectUpTo(String condition, int n) {
-		for (User user : users) {
+		if (population == null) return;
+		Infection root = flushedRoot();
+		int id = population.getConditions().intern(condition);
+		for (User user : root.users) {
 			if (n <= 0) break;
-			user.addCondition(condition);
+			root.setCondition(user, id, true);
 			n--;
 		}
 	}
 
 	/**
 	 * Return whether or not all users in this infection
-	 * consistently have or don't have the given condition
+	 * consistently have or don't have the given condition.
+	 * This takes constant time.
 	 * @param condition The condition
 	 * @return True if all users either have or don't have the given condition
 	 */
 	public boolean consistent(String condition) {
-		boolean first = true;
-		boolean has = true;
-		for (User user : users) {
-			if (first) {
-				has = user.hasCondition(condition);
-				first = false;
-			} else if (user.hasCondition(condition) != has) {
-				return false;
-			}
-		}
-		
-		return true;
+		if (population == null) return true;
+		int id = population.getConditions().id(condition);
+		if (id < 0) return true;
+		Infection root = find();
+		int overrides = root.overrides(id);
+		return overrides == 0 || overrides == root.users.size();
 	}
 	
 	
@@ -0,0 +1,202 @@
+package org.khanacademy.infection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A connection to a {@link LookupServer}, which can send batches of lookups
+ * one at a time with {@link LookupClient#lookup(int[], int[])}, or pipeline them
+ * with {@link LookupClient#send(int[], int[], int, int)} and
+ * {@link LookupClient#receive(boolean[])}. A client is not safe to use from
+ * several threads at once, but any number of clients can be connected.
+ *
+ * {@link LookupClient#loadTest(int, int, int, int, int, int, String[])} measures
+ * a server's throughput with random lookups from several connections, and can be
+ * run from the command line with {@link LookupClient#main(String[])}.
+ */
+public final class LookupClient implements Closeable {
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private ByteBuffer request = ByteBuffer.allocate(0);
+	private byte[] response = new byte[0];
+	// The number of lookup requests sent without reading their responses
+	private int pending;
+
+	private LookupClient(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+	}
+
+	/** Connects to a lookup server on the given port of the loopback interface */
+	public static LookupClient connect(int port) throws IOException {
+		return new LookupClient(new Socket(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Returns the ID of the given condition, or -1 if it has never been used,
+	 * waiting for the server to answer. There can't be any lookups pending.
+	 */
+	public int conditionID(String condition) throws IOException {
+		if (pending > 0) throw new IllegalStateException("Lookups still pending");
+		out.writeByte(LookupServer.CONDITION);
+		out.writeUTF(condition);
+		out.flush();
+		return in.readInt();
+	}
+
+	/**
+	 * Sends a batch of lookups, of each user ID with the condition ID at the same
+	 * index, from offset to offset + count, without waiting for the answer. Requests
+	 * are buffered until {@link LookupClient#flush()} or {@link LookupClient#receive(boolean[])}.
+	 */
+	public void send(int[] userIDs, int[] conditionIDs, int offset, int count) throws IOException {
+		if (count < 0 || count > LookupServer.MAX_BATCH) throw new IllegalArgumentException("Bad batch size: " + count);
+		int bytes = 5 + 8 * count;
+		if (request.capacity() < bytes) request = ByteBuffer.allocate(Math.max(bytes, 2 * request.capacity()));
+		request.clear();
+		request.put(LookupServer.LOOKUP).putInt(count);
+		for (int i = offset; i < offset + count; i++) request.putInt(userIDs[i]).putInt(conditionIDs[i]);
+		out.write(request.array(), 0, bytes);
+		pending++;
+	}
+
+	/** Sends any buffered requests */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Reads the answer to the oldest pending batch of lookups into results,
+	 * which must be long enough, flushing first if needed.
+	 * @return The number of lookups in the batch
+	 */
+	public int receive(boolean[] results) throws IOException {
+		if (pending == 0) throw new IllegalStateException("No lookups pending");
+		if (in.available() == 0) out.flush();
+		int count = in.readInt();
+		int bytes = (count + 7) >>> 3;
+		if (response.length < bytes) response = new byte[Math.max(bytes, 2 * response.length)];
+		in.readFully(response, 0, bytes);
+		for (int i = 0; i < count; i++) results[i] = (response[i >>> 3] & (1 << (i & 7))) != 0;
+		pending--;
+		return count;
+	}
+
+	/** Returns the number of batches sent whose answers haven't been received */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Returns whether or not each user has the condition with the ID at the same
+	 * index, waiting for the server to answer.
+	 */
+	public boolean[] lookup(int[] userIDs, int[] conditionIDs) throws IOException {
+		if (userIDs.length != conditionIDs.length) {
+			throw new IllegalArgumentException("Users and conditions must have the same length");
+		}
+		if (pending > 0) throw new IllegalStateException("Lookups still pending");
+		boolean[] results = new boolean[userIDs.length];
+		send(userIDs, conditionIDs, 0, userIDs.length);
+		receive(results);
+		return results;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Sends random lookups to the server on the given port from several connections
+	 * at once, and measures how long each batch takes to be answered.
+	 * @param threads The number of connections, each with its own thread
+	 * @param batches The number of batches each connection sends
+	 * @param batchSize The number of lookups per batch
+	 * @param pipeline The number of batches each connection has in flight at once
+	 * @param userIDLimit Lookups are of user IDs from 0 to userIDLimit - 1
+	 * @param conditions Lookups are of conditions chosen from these
+	 * @return The throughput and the latency of each batch, as seen by the clients
+	 */
+	public static LookupStats loadTest(final int port, int threads, final int batches,
+			final int batchSize, final int pipeline, final int userIDLimit,
+			final String[] conditions) throws IOException, InterruptedException {
+		if (pipeline < 1) throw new IllegalArgumentException("Pipeline must be positive");
+		final LookupStats.Recorder recorder = new LookupStats.Recorder();
+		final AtomicReference<IOException> failure = new AtomicReference<>();
+		Thread[] running = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			running[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try (LookupClient client = connect(port)) {
+						client.run(recorder, new Random(seed), batches, batchSize, pipeline, userIDLimit, conditions);
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "lookup-load-" + t);
+			running[t].start();
+		}
+		for (Thread thread : running) thread.join();
+		if (failure.get() != null) throw failure.get();
+		return recorder.snapshot();
+	}
+
+	private void run(LookupStats.Recorder recorder, Random random, int batches, int batchSize,
+			int pipeline, int userIDLimit, String[] conditions) throws IOException {
+		int[] ids = new int[conditions.length];
+		for (int i = 0; i < ids.length; i++) ids[i] = conditionID(conditions[i]);
+		int[] userIDs = new int[batchSize], conditionIDs = new int[batchSize];
+		boolean[] results = new boolean[batchSize];
+		// When each batch in flight was sent, oldest first
+		long[] sent = new long[pipeline];
+		for (int batch = 0, received = 0; received < batches; ) {
+			if (batch < batches && batch - received < pipeline) {
+				for (int i = 0; i < batchSize; i++) {
+					userIDs[i] = random.nextInt(userIDLimit);
+					conditionIDs[i] = ids[random.nextInt(ids.length)];
+				}
+				sent[batch % pipeline] = System.nanoTime();
+				send(userIDs, conditionIDs, 0, batchSize);
+				batch++;
+			} else {
+				receive(results);
+				recorder.record(batchSize, System.nanoTime() - sent[received % pipeline]);
+				received++;
+			}
+		}
+	}
+
+	/**
+	 * Runs {@link LookupClient#loadTest(int, int, int, int, int, int, String[])} and prints
+	 * the results. The arguments are the port, threads, batches, batch size, pipeline,
+	 * user ID limit, and then the conditions.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 7) {
+			System.err.println("Usage: LookupClient port threads batches batchSize pipeline userIDLimit condition...");
+			System.exit(1);
+		}
+		String[] conditions = new String[args.length - 6];
+		System.arraycopy(args, 6, conditions, 0, conditions.length);
+		LookupStats stats = loadTest(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+				Integer.parseInt(args[5]), conditions);
+		System.out.println(stats);
+	}
+}
@@ -0,0 +1,249 @@
+package org.khanacademy.infection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A server on the loopback interface which answers whether users have conditions
+ * from a {@link ConditionIndex}, so other processes on the same machine can ask
+ * without embedding a {@link Population}.
+ *
+ * Each connection is served by its own thread: a virtual thread if the JVM has
+ * them (Java 21 and up), or otherwise a thread from a cached pool. The protocol is
+ * binary, big-endian, and pipelined: clients may send any number of requests before
+ * reading the responses, which come back in the same order. The server only flushes
+ * its responses once it has run out of requests to read, so a pipeline of requests
+ * is answered with a few large writes. There are two requests:
+ * <ul>
+ * <li>{@link LookupServer#CONDITION}, followed by a condition name as in
+ * {@link DataOutputStream#writeUTF(String)}, which is answered with the condition's
+ * int ID, or -1 if it has never been used</li>
+ * <li>{@link LookupServer#LOOKUP}, followed by an int count and that many pairs of
+ * int user IDs and condition IDs, which is answered with the count and a byte for
+ * each 8 lookups, where bit (i % 8) of byte (i / 8) is set if the i-th user has the
+ * i-th condition</li>
+ * </ul>
+ * The index can be replaced at any time with {@link LookupServer#setIndex(ConditionIndex)},
+ * and each request is answered entirely from one index.
+ */
+public final class LookupServer implements Closeable {
+
+	/** The request type for looking up a condition's ID */
+	public final static byte CONDITION = 1;
+	/** The request type for a batch of lookups */
+	public final static byte LOOKUP = 2;
+	/** The largest number of lookups in one request */
+	public final static int MAX_BATCH = 1 << 20;
+
+	private final static Logger LOGGER = Logger.getLogger(LookupServer.class.getName());
+	// How long to wait before accepting again after it fails, doubling for each failure in a row
+	private final static long MIN_BACKOFF_MILLIS = 10, MAX_BACKOFF_MILLIS = 1000;
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor;
+	private final boolean virtual;
+	private final Thread acceptor;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final LookupStats.Recorder recorder = new LookupStats.Recorder();
+	private volatile ConditionIndex index;
+
+	private LookupServer(ConditionIndex index, int port) throws IOException {
+		this.index = index;
+		serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		ExecutorService virtualExecutor = newVirtualExecutor();
+		virtual = virtualExecutor != null;
+		executor = virtual ? virtualExecutor : Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lookup-connection");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "lookup-server-" + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Starts serving lookups from the given index on the given port of the
+	 * loopback interface, or any free port if it is 0.
+	 */
+	public static LookupServer start(ConditionIndex index, int port) throws IOException {
+		return new LookupServer(index, port);
+	}
+
+	/** Returns the port the server is listening on */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Replaces the index lookups are answered from, such as after the population changes */
+	public void setIndex(ConditionIndex index) {
+		this.index = index;
+	}
+
+	public ConditionIndex getIndex() {
+		return index;
+	}
+
+	/** Returns the number of open connections */
+	public int countConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * Returns the counters for every request answered so far. Latency is measured
+	 * from reading the start of a request to writing its response.
+	 */
+	public LookupStats getStats() {
+		return recorder.snapshot();
+	}
+
+	/** Returns whether or not connections are served by virtual threads */
+	public boolean usesVirtualThreads() {
+		return virtual;
+	}
+
+	/** Stops accepting connections and closes the open ones */
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		for (Socket socket : connections) socket.close();
+		executor.shutdownNow();
+	}
+
+	// Virtual threads are only looked up by reflection, so this still compiles and
+	// runs on versions of Java without them, where this returns null
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private void accept() {
+		long backoff = 0;
+		while (true) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// Closing the server socket is how we're told to stop
+				if (serverSocket.isClosed()) return;
+				// Otherwise, such as when we're out of file descriptors, accepting
+				// again straight away would most likely fail again
+				backoff = Math.min(Math.max(2 * backoff, MIN_BACKOFF_MILLIS), MAX_BACKOFF_MILLIS);
+				LOGGER.log(Level.WARNING, "Failed to accept a connection on port " + getPort() + 
+						", retrying in " + backoff + "ms", e);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+				continue;
+			}
+			backoff = 0;
+			try {
+				socket.setTcpNoDelay(true);
+			} catch (SocketException e) {
+				// The connection failed before we got to it
+				closeQuietly(socket);
+				continue;
+			}
+			connections.add(socket);
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (RuntimeException e) {
+				// Shut down while accepting
+				connections.remove(socket);
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			ByteBuffer lookups = ByteBuffer.allocate(0);
+			byte[] results = new byte[0];
+			while (true) {
+				int type = in.read();
+				if (type < 0) break;
+				long start = System.nanoTime();
+				ConditionIndex index = this.index;
+				if (type == CONDITION) {
+					out.writeInt(index.conditionID(in.readUTF()));
+					recorder.record(0, System.nanoTime() - start);
+				} else if (type == LOOKUP) {
+					int count = in.readInt();
+					if (count < 0 || count > MAX_BATCH) throw new IOException("Bad batch size: " + count);
+					int bytes = (count + 7) >>> 3;
+					if (results.length < bytes) results = new byte[Math.max(bytes, results.length * 2)];
+					if (lookups.capacity() < 8 * count) {
+						lookups = ByteBuffer.allocate(Math.max(8 * count, 2 * lookups.capacity()));
+					}
+					in.readFully(lookups.array(), 0, 8 * count);
+					for (int i = 0; i < bytes; i++) results[i] = 0;
+					for (int i = 0; i < count; i++) {
+						int userID = lookups.getInt(8 * i), conditionID = lookups.getInt(8 * i + 4);
+						if (index.hasCondition(userID, conditionID)) results[i >>> 3] |= 1 << (i & 7);
+					}
+					out.writeInt(count);
+					out.write(results, 0, bytes);
+					recorder.record(count, System.nanoTime() - start);
+				} else {
+					throw new IOException("Bad request type: " + type);
+				}
+				// Only flush once every pipelined request has been answered
+				if (in.available() == 0) out.flush();
+			}
+			out.flush();
+		} catch (EOFException | SocketException e) {
+			// The client hung up
+		} catch (IOException e) {
+			// A protocol error, so hang up on the client
+		} finally {
+			connections.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
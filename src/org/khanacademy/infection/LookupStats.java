@@ -0,0 +1,106 @@
+package org.khanacademy.infection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the lookups answered by a {@link LookupServer}, or made by a
+ * {@link LookupClient} load test, as of one moment: how many requests and lookups
+ * there were, how long they took, and so how many lookups there were per second.
+ *
+ * Latencies are counted in buckets by powers of two of nanoseconds, so
+ * percentiles are accurate to within a factor of two.
+ */
+public final class LookupStats {
+
+	private final static int BUCKETS = 64;
+
+	private final long requests, lookups, elapsedNanos, totalLatencyNanos;
+	private final long[] buckets;
+
+	private LookupStats(long requests, long lookups, long elapsedNanos,
+			long totalLatencyNanos, long[] buckets) {
+		this.requests = requests;
+		this.lookups = lookups;
+		this.elapsedNanos = elapsedNanos;
+		this.totalLatencyNanos = totalLatencyNanos;
+		this.buckets = buckets;
+	}
+
+	/** Returns the number of requests, each of which is a batch of lookups */
+	public long getRequests() {
+		return requests;
+	}
+
+	/** Returns the total number of (user, condition) lookups */
+	public long getLookups() {
+		return lookups;
+	}
+
+	/** Returns the time since counting started */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/** Returns the number of lookups per second since counting started */
+	public double getLookupsPerSecond() {
+		return elapsedNanos == 0 ? 0 : lookups * 1e9 / elapsedNanos;
+	}
+
+	/** Returns the mean time taken per request */
+	public double getMeanLatencyNanos() {
+		return requests == 0 ? 0 : (double) totalLatencyNanos / requests;
+	}
+
+	/**
+	 * Returns an upper bound on the time taken by the given percentage of
+	 * requests, from 0 to 100, which is at most twice the real value.
+	 */
+	public long getLatencyPercentileNanos(double percentile) {
+		long total = 0;
+		for (long count : buckets) total += count;
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= Math.max(rank, 1)) return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d requests, %d lookups in %.3fs (%.0f lookups/s), "
+				+ "latency mean %.1fus, p50 %dus, p99 %dus",
+				requests, lookups, elapsedNanos / 1e9, getLookupsPerSecond(),
+				getMeanLatencyNanos() / 1e3, getLatencyPercentileNanos(50) / 1000,
+				getLatencyPercentileNanos(99) / 1000);
+	}
+
+	/** Counts requests as they happen, from any number of threads */
+	static final class Recorder {
+		private final long start = System.nanoTime();
+		private final LongAdder requests = new LongAdder(), lookups = new LongAdder();
+		private final LongAdder latency = new LongAdder();
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+		Recorder() {
+			for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+		}
+
+		/** Counts one request of the given number of lookups, which took the given time */
+		void record(int count, long nanos) {
+			requests.increment();
+			lookups.add(count);
+			latency.add(nanos);
+			buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+		}
+
+		LookupStats snapshot() {
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) counts[i] = buckets[i].sum();
+			return new LookupStats(requests.sum(), lookups.sum(), System.nanoTime() - start,
+					latency.sum(), counts);
+		}
+	}
+}
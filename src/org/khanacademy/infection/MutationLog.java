@@ -0,0 +1,477 @@
+package org.khanacademy.infection;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a {@link Population} since its last
+ * {@link Snapshot}, so that they can be recovered after a crash.
+ *
+ * Once a log is attached with {@link Population#setLog(MutationLog)}, every new user,
+ * added or removed coach, deleted user and added or removed condition is recorded as
+ * a compact binary record. Records are buffered in memory and written out in groups:
+ * {@link MutationLog#commit()} writes everything recorded since the last commit with a
+ * single write and fsync, so changes are durable once a commit that follows them returns.
+ * Groups are also committed automatically once they reach {@link MutationLog#setGroupBytes(int)}.
+ *
+ * Each group is written as a frame: its length, a CRC32 of its contents, and its records.
+ * A crash can leave a torn frame at the end of the log, which is ignored when the log is
+ * replayed, and cut off when it is opened again. A frame whose length runs past the end
+ * of the file is torn too, so a corrupt length never makes us allocate more than the file.
+ *
+ * Every log starts with the generation of the snapshot it applies to, and
+ * {@link MutationLog#checkpoint(Population, Path)} writes a snapshot of the next generation
+ * before starting a new log. If a crash leaves a new snapshot with an old log, the old
+ * log is known to be in the snapshot already, and is skipped. A log newer than the
+ * snapshot means the snapshot it applies to is missing or was replaced by an older one,
+ * so recovery fails rather than throw the log's changes away.
+ *
+ * {@link MutationLog#recover(Path, Path)} loads the latest snapshot and replays the log
+ * on top of it. Runs of new users and coaches are replayed through
+ * {@link Population#bulkLoad(String[], int[], int[])}, and splits are deferred until
+ * the end, so recovery takes time proportional to the size of the log, rather than
+ * re-doing each change on its own.
+ */
+public final class MutationLog implements Closeable {
+
+	/** The default value for {@link MutationLog#setGroupBytes(int)}: 64KB */
+	public final static int DEFAULT_GROUP_BYTES = 1 << 16;
+
+	// Record types
+	private final static byte CREATE_USER = 1;
+	private final static byte ADD_COACH = 2;
+	private final static byte REMOVE_COACH = 3;
+	private final static byte DELETE_USER = 4;
+	private final static byte DEFINE_CONDITION = 5;
+	private final static byte INFECTION_CONDITION = 6;
+	private final static byte USER_CONDITION = 7;
+	private final static byte BEGIN = 8;
+
+	private final FileChannel channel;
+
+	// The records since the last commit
+	private ByteBuffer group = ByteBuffer.allocate(1 << 12);
+	private int groupBytes = DEFAULT_GROUP_BYTES;
+
+	// The IDs of the conditions defined so far in this log
+	private final Map<String, Integer> conditions = new HashMap<>();
+
+	private long records, commits;
+	// The generation of the snapshot this log applies to, or -1 if it hasn't begun
+	private int generation = -1;
+
+	private MutationLog(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Opens the log in the given file for appending, creating it if needed.
+	 * Any torn frame at the end of the log is cut off. New logs apply to
+	 * snapshots of generation 0.
+	 */
+	public static MutationLog open(Path path) throws IOException {
+		return open(path, 0);
+	}
+	
+	// Opens a log, beginning it with the given generation if it is empty
+	private static MutationLog open(Path path, int generation) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MutationLog log = new MutationLog(channel);
+		try {
+			long end = 0;
+			if (channel.size() > 0) {
+				try (InputStream in = Files.newInputStream(path)) {
+					end = log.scan(in, channel.size(), null);
+				}
+			}
+			channel.truncate(end);
+			channel.position(end);
+			if (log.generation < 0) log.begin(generation);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return log;
+	}
+
+	// Starts the (empty) log for the given generation
+	private void begin(int generation) throws IOException {
+		this.generation = generation;
+		record(BEGIN, 4).putInt(generation);
+		commit();
+	}
+	
+	/** Returns the generation of the snapshot this log applies to */
+	public synchronized int getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Sets the number of bytes of records after which a group is committed
+	 * automatically, even if {@link MutationLog#commit()} hasn't been called.
+	 */
+	public synchronized void setGroupBytes(int bytes) {
+		groupBytes = bytes;
+	}
+
+	public synchronized int getGroupBytes() {
+		return groupBytes;
+	}
+
+	/** Returns the number of records written to this log since it was opened */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/** Returns the number of groups committed to this log since it was opened */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	synchronized void createUser(int userID, String userName) {
+		// A null name is recorded with a length of -1, to tell it apart from an empty one
+		byte[] name = userName == null ? new byte[0] : userName.getBytes(StandardCharsets.UTF_8);
+		record(CREATE_USER, 8 + name.length).putInt(userID)
+				.putInt(userName == null ? -1 : name.length).put(name);
+		recorded();
+	}
+
+	synchronized void addCoach(int coach, int pupil) {
+		record(ADD_COACH, 8).putInt(coach).putInt(pupil);
+		recorded();
+	}
+
+	synchronized void removeCoach(int coach, int pupil) {
+		record(REMOVE_COACH, 8).putInt(coach).putInt(pupil);
+		recorded();
+	}
+
+	synchronized void deleteUser(int userID) {
+		record(DELETE_USER, 4).putInt(userID);
+		recorded();
+	}
+
+	/** Records a condition added to or removed from the infection of the given user */
+	synchronized void setInfectionCondition(int userID, String condition, boolean value) {
+		int id = define(condition);
+		record(INFECTION_CONDITION, 9).putInt(userID).putInt(id).put((byte) (value ? 1 : 0));
+		recorded();
+	}
+
+	/** Records a condition added to or removed from just the given user */
+	synchronized void setUserCondition(int userID, String condition, boolean value) {
+		int id = define(condition);
+		record(USER_CONDITION, 9).putInt(userID).putInt(id).put((byte) (value ? 1 : 0));
+		recorded();
+	}
+
+	// Conditions are defined once per log, and referred to by ID after that
+	private int define(String condition) {
+		Integer id = conditions.get(condition);
+		if (id != null) return id;
+		id = conditions.size();
+		conditions.put(condition, id);
+		byte[] name = condition.getBytes(StandardCharsets.UTF_8);
+		record(DEFINE_CONDITION, 4 + name.length).putInt(name.length).put(name);
+		return id;
+	}
+
+	// Makes room for a record of the given type and length, and returns the buffer to write it to
+	private ByteBuffer record(byte type, int length) {
+		if (group.remaining() < length + 1) {
+			int capacity = Math.max(group.capacity() * 2, group.position() + length + 1);
+			ByteBuffer larger = ByteBuffer.allocate(capacity);
+			group.flip();
+			larger.put(group);
+			group = larger;
+		}
+		return group.put(type);
+	}
+
+	private void recorded() {
+		records++;
+		if (group.position() >= groupBytes) {
+			try {
+				commit();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes every record since the last commit to the log as one group, and
+	 * forces it to disk. Once this returns, those changes will survive a crash.
+	 */
+	public synchronized void commit() throws IOException {
+		if (group.position() == 0) return;
+		CRC32 crc = new CRC32();
+		crc.update(group.array(), 0, group.position());
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(group.position()).putInt((int) crc.getValue()).flip();
+		group.flip();
+		while (header.hasRemaining() || group.hasRemaining()) {
+			channel.write(new ByteBuffer[] { header, group });
+		}
+		channel.force(false);
+		group.clear();
+		commits++;
+	}
+
+	/**
+	 * Commits the log, writes a snapshot of the given population to the given file,
+	 * and then empties the log, since everything in it is now in the snapshot. The
+	 * snapshot is written to a temporary file first and then moved into place (see
+	 * {@link Snapshot#write(Population, Path)}), so a crash along the way leaves either
+	 * the old snapshot and log, or the new ones. The population should not change while
+	 * this is running.
+	 */
+	public synchronized void checkpoint(Population population, Path snapshot) throws IOException {
+		commit();
+		Snapshot.write(population, snapshot, generation + 1);
+		channel.truncate(0);
+		channel.position(0);
+		conditions.clear();
+		begin(generation + 1);
+	}
+
+	/** Commits any remaining records and closes the log */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			commit();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Restores the population in the given snapshot (or an empty one, if there is
+	 * no snapshot yet), replays the log in the given file on top of it, and attaches
+	 * the log to it, so that it will record any further changes. A log older than the
+	 * snapshot is already in it, so it is deleted.
+	 * @throws IOException If the log is newer than the snapshot, which is left as it is
+	 */
+	public static Population recover(Path snapshot, Path log) throws IOException {
+		Population population = new Population();
+		int generation = 0;
+		if (Files.exists(snapshot)) {
+			Snapshot restored = Snapshot.open(snapshot);
+			population = restored.restore();
+			generation = restored.generation();
+		}
+		if (Files.exists(log)) {
+			int logGeneration = generation(log);
+			if (logGeneration > generation) {
+				throw new IOException("Log " + log + " is for generation " + logGeneration + 
+						", but snapshot " + snapshot + " is generation " + generation);
+			} else if (logGeneration == generation) {
+				replay(log, population);
+			} else {
+				// This log was already checkpointed into the snapshot
+				Files.delete(log);
+			}
+		}
+		population.setLog(open(log, generation));
+		return population;
+	}
+	
+	// Returns the generation of the log in the given file, or -1 if it hasn't begun
+	private static int generation(Path path) throws IOException {
+		MutationLog log = new MutationLog(null);
+		try (InputStream in = Files.newInputStream(path)) {
+			log.scan(in, Files.size(path), null);
+		}
+		return log.generation;
+	}
+
+	/**
+	 * Applies every record in the log in the given file to the given population, which
+	 * must be in the state the log started from, and must not have a log attached. A torn
+	 * frame at the end of the log is ignored.
+	 * @return The number of records replayed
+	 */
+	public static long replay(Path path, Population population) throws IOException {
+		if (population.getLog() != null) {
+			throw new IllegalStateException("Can't replay into a population with a log attached");
+		}
+		Replay replay = new Replay(population);
+		boolean deferSplits = population.getDeferSplits();
+		population.setDeferSplits(true);
+		try (InputStream in = Files.newInputStream(path)) {
+			new MutationLog(null).scan(in, Files.size(path), replay);
+			replay.flush();
+		} finally {
+			population.setDeferSplits(deferSplits);
+		}
+		return replay.records;
+	}
+
+	// Reads the frames of the log from the given stream of size bytes, passing their records
+	// to replay if it isn't null, and returns the length of the log up to the first torn frame
+	private long scan(InputStream stream, long size, Replay replay) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+		long end = 0;
+		Map<Integer, String> names = new HashMap<>();
+		while (true) {
+			int length, checksum;
+			byte[] frame;
+			try {
+				length = in.readInt();
+				checksum = in.readInt();
+				if (length < 0 || length > size - end - 8) break;
+				frame = new byte[length];
+				in.readFully(frame);
+			} catch (EOFException e) {
+				break;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(frame);
+			if ((int) crc.getValue() != checksum) break;
+			end += 8 + length;
+
+			ByteBuffer records = ByteBuffer.wrap(frame);
+			while (records.hasRemaining()) {
+				byte type = records.get();
+				if (type == BEGIN) {
+					generation = records.getInt();
+				} else if (type == DEFINE_CONDITION) {
+					String name = string(records);
+					names.put(names.size(), name);
+					conditions.put(name, conditions.size());
+				} else if (replay != null) {
+					replay.apply(type, records, names);
+				} else {
+					skip(type, records);
+				}
+			}
+		}
+		return end;
+	}
+
+	private static void skip(byte type, ByteBuffer records) throws IOException {
+		switch (type) {
+		case CREATE_USER:
+			records.getInt();
+			string(records);
+			break;
+		case ADD_COACH:
+		case REMOVE_COACH:
+			records.position(records.position() + 8);
+			break;
+		case DELETE_USER:
+			records.position(records.position() + 4);
+			break;
+		case INFECTION_CONDITION:
+		case USER_CONDITION:
+			records.position(records.position() + 9);
+			break;
+		default:
+			throw new IOException("Unknown record type: " + type);
+		}
+	}
+
+	private static String string(ByteBuffer records) {
+		int length = records.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		records.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Applies records to a population, collecting runs of new users and
+	// coaches so they can be added with one bulk load
+	private static class Replay {
+		private final Population population;
+		private final List<String> names = new ArrayList<>();
+		private int[] coaches = new int[64], pupils = new int[64];
+		private int edges;
+		private long records;
+
+		Replay(Population population) {
+			this.population = population;
+		}
+
+		void apply(byte type, ByteBuffer in, Map<Integer, String> conditions) throws IOException {
+			records++;
+			switch (type) {
+			case CREATE_USER:
+				int id = in.getInt();
+				String name = string(in);
+				if (id != population.userIDLimit() + names.size()) {
+					throw new IOException("Log expected user " + id + " but the population is at "
+							+ (population.userIDLimit() + names.size()));
+				}
+				names.add(name);
+				return;
+			case ADD_COACH:
+				if (edges == coaches.length) {
+					coaches = Arrays.copyOf(coaches, edges * 2);
+					pupils = Arrays.copyOf(pupils, edges * 2);
+				}
+				coaches[edges] = in.getInt();
+				pupils[edges++] = in.getInt();
+				return;
+			}
+
+			// Everything else has to see the users and coaches before it
+			flush();
+			switch (type) {
+			case REMOVE_COACH:
+				User.removeCoach(user(in.getInt()), user(in.getInt()));
+				break;
+			case DELETE_USER:
+				user(in.getInt()).delete();
+				break;
+			case INFECTION_CONDITION:
+			case USER_CONDITION:
+				User user = user(in.getInt());
+				String condition = conditions.get(in.getInt());
+				boolean value = in.get() != 0;
+				if (condition == null) throw new IOException("Undefined condition in log");
+				if (type == USER_CONDITION) {
+					if (value) user.addCondition(condition);
+					else user.removeCondition(condition);
+				} else {
+					if (value) user.getInfection().addCondition(condition);
+					else user.getInfection().removeCondition(condition);
+				}
+				break;
+			default:
+				throw new IOException("Unknown record type: " + type);
+			}
+		}
+
+		private User user(int id) throws IOException {
+			User user = population.getUser(id);
+			if (user == null) throw new IOException("Log refers to missing user " + id);
+			return user;
+		}
+
+		void flush() {
+			if (names.isEmpty() && edges == 0) return;
+			population.bulkLoad(names.toArray(new String[names.size()]),
+					Arrays.copyOf(coaches, edges), Arrays.copyOf(pupils, edges));
+			names.clear();
+			edges = 0;
+		}
+	}
+}
@@ -1,10 +1,15 @@
 package org.khanacademy.infection;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.khanacademy.infection.RolloutPlan.Strategy;
+import org.khanacademy.infection.SubsetSum.Approximation;
 
 /**
  * Represents a population of {@link User}s and exposes
@@ -13,7 +18,47 @@ import java.util.Set;
 public class Population {
 
 	private int nextUserID = 0;
-	private Set<User> allUsers = new HashSet<>();
+	// All users, indexed by ID, with null for deleted users
+	private final List<User> allUsers = new ArrayList<>();
+	private int userCount;
+	
+	private final CoachGraph graph = new CoachGraph();
+	private final SpanningForest forest = new SpanningForest();
+	private final ConditionRegistry conditions = new ConditionRegistry();
+	
+	// Where changes are recorded, if anywhere
+	private MutationLog log;
+	
+	// Settings and results for limitedInfectionExact
+	private long exactCellBudget = 1L << 34;
+	private double epsilon = 0.001;
+	private long memoryBudget = SubsetSum.DEFAULT_MEMORY_BUDGET;
+	private ForkJoinPool parallelPool;
+	private int parallelCutoff = SubsetSum.DEFAULT_PARALLEL_CUTOFF;
+	private int lastError = -1;
+	private RolloutPlan lastPlan;
+	
+	// Rollout calls whose plans exceed these are refused
+	private long rolloutCellLimit = Long.MAX_VALUE;
+	private long rolloutByteLimit = Long.MAX_VALUE;
+	
+	// A live registry of all (root) infections, bucketed by size, which
+	// Infections keep up to date as they are created, merged and split
+	private final SizeHistogram<Infection> infections = new SizeHistogram<>();
+	// Bumped whenever the registry changes, so cached results know when to go stale
+	private long version;
+	
+	// The exact solver's table from the last call to limitedInfectionExact, if
+	// it covered every sum, and whether or not to build tables like that
+	private ReachableSums<Infection> reachable;
+	private boolean reuseTables = true;
+	
+	// The last view handed out, which is handed out again until the version changes
+	private PopulationView view;
+	
+	// Infections which may have split up, if splits are deferred
+	private boolean deferSplits;
+	private final Set<Infection> pendingSplits = new LinkedHashSet<>();
 	
 	protected int incrementUserID() {
 		return nextUserID++;
@@ -22,19 +67,445 @@ public class Population {
 	public User createUser(String userName) {
 		User user = new User(userName, this);
 		allUsers.add(user);
+		userCount++;
+		if (log != null) log.createUser(user.getUserID(), userName);
 		return user;
 	}
 	
 	public boolean removeUser(User user) {
-		return allUsers.remove(user);
+		int id = user.getUserID();
+		if (getUser(id) != user) return false;
+		allUsers.set(id, null);
+		userCount--;
+		return true;
 	}
 	
+	/**
+	 * Calls {@link Population#bulkLoad(String[], int[], int[])} with
+	 * count users who have empty names.
+	 */
+	public User[] bulkLoad(int count, int[] coaches, int[] pupils) {
+		String[] userNames = new String[count];
+		Arrays.fill(userNames, "");
+		return bulkLoad(userNames, coaches, pupils);
+	}
+	
+	/**
+	 * Creates a user for each of the given names, and adds an edge from each coach
+	 * in coaches to the pupil at the same index in pupils, all at once. New users 
+	 * get consecutive IDs starting at {@link Population#userIDLimit()}, and edges can
+	 * refer to both those IDs and any existing users.
+	 * 
+	 * This is much faster than calling {@link Population#createUser(String)} and 
+	 * {@link User#addCoach(User, User)} for each user and edge: the infections of
+	 * the new users are found with a single union-find pass over the edges, each one
+	 * is created once, with all of its users, and the edges are added to the graph's
+	 * compressed rows in one rebuild. Only edges to existing users go through
+	 * {@link User#addCoach(User, User)}.
+	 * @param userNames The names of the new users
+	 * @param coaches The coach IDs of the edges
+	 * @param pupils The pupil IDs of the edges
+	 * @return The new users, in order of their IDs
+	 */
+	public User[] bulkLoad(String[] userNames, int[] coaches, int[] pupils) {
+		if (coaches.length != pupils.length) {
+			throw new IllegalArgumentException("Coaches and pupils must have the same length");
+		}
+		int first = userIDLimit(), count = userNames.length;
+		for (int i = 0; i < coaches.length; i++) {
+			checkBulkID(coaches[i], first + count);
+			checkBulkID(pupils[i], first + count);
+		}
+		
+		long[] edges = new long[coaches.length];
+		int edgeCount = 0;
+		for (int i = 0; i < coaches.length; i++) {
+			if (coaches[i] >= first && pupils[i] >= first) {
+				edges[edgeCount++] = ((long) coaches[i] << 32) | pupils[i];
+			}
+		}
+		
+		// Union by size, with path halving. Each edge that joins two
+		// components is a tree edge of the spanning forest.
+		int[] parent = new int[count];
+		int[] size = new int[count];
+		for (int i = 0; i < count; i++) {
+			parent[i] = i;
+			size[i] = 1;
+		}
+		long[] treeEdges = new long[Math.min(edgeCount, Math.max(count - 1, 0))];
+		int treeCount = 0;
+		for (int i = 0; i < edgeCount; i++) {
+			int a = find(parent, (int) (edges[i] >>> 32) - first), b = find(parent, (int) edges[i] - first);
+			if (a == b) continue;
+			if (size[a] < size[b]) {
+				int temp = a;
+				a = b;
+				b = temp;
+			}
+			parent[b] = a;
+			size[a] += size[b];
+			treeEdges[treeCount++] = edges[i];
+		}
+		size = null;
+		for (int i = 0; i < count; i++) parent[i] = find(parent, i);
+		
+		User[] users = bulkLoad(userNames, edges, edgeCount, treeEdges, treeCount, parent);
+		
+		// And add any edges to existing users the usual way
+		for (int i = 0; i < coaches.length; i++) {
+			if (coaches[i] < first || pupils[i] < first) {
+				User.addCoach(getUser(coaches[i]), getUser(pupils[i]));
+			}
+		}
+		return users;
+	}
+	
+	/**
+	 * Creates a user for each of the given names, with consecutive IDs starting at
+	 * {@link Population#userIDLimit()}, once their infections are already known.
+	 * @param edges The edges between new users, each coach ID shifted left 32 bits
+	 * and or-ed with the pupil ID, in any order and possibly with duplicates
+	 * @param treeEdges Edges in the same form which form a spanning forest of the new users
+	 * @param roots For each new user, the index of some user in the same infection,
+	 * which is the same for every user in it
+	 */
+	User[] bulkLoad(String[] userNames, long[] edges, int edgeCount, 
+			long[] treeEdges, int treeCount, int[] roots) {
+		int count = userNames.length;
+		User[] users = new User[count];
+		for (int i = 0; i < count; i++) {
+			users[i] = new User(userNames[i], this, true);
+			allUsers.add(users[i]);
+		}
+		userCount += count;
+		
+		// Sort the edges, so we can drop duplicates and self-edges
+		Arrays.sort(edges, 0, edgeCount);
+		int[] edgeCoaches = new int[edgeCount], edgePupils = new int[edgeCount];
+		int unique = 0;
+		for (int i = 0; i < edgeCount; i++) {
+			int coach = (int) (edges[i] >>> 32), pupil = (int) edges[i];
+			if (coach == pupil || (i > 0 && edges[i] == edges[i - 1])) continue;
+			edgeCoaches[unique] = coach;
+			edgePupils[unique++] = pupil;
+		}
+		graph.addEdges(edgeCoaches, edgePupils, unique);
+		if (log != null) {
+			for (User user : users) log.createUser(user.getUserID(), user.getUserName());
+			for (int i = 0; i < unique; i++) log.addCoach(edgeCoaches[i], edgePupils[i]);
+		}
+		
+		// The tree edges go first, so the rest are all kept as replacements
+		for (int i = 0; i < treeCount; i++) forest.add((int) (treeEdges[i] >>> 32), (int) treeEdges[i]);
+		for (int i = 0; i < unique; i++) forest.add(edgeCoaches[i], edgePupils[i]);
+		edgeCoaches = edgePupils = null;
+		
+		// Create each infection with all of its users at once
+		int[] lists = new int[count];
+		Arrays.fill(lists, -1);
+		List<List<User>> members = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int root = roots[i];
+			if (lists[root] < 0) {
+				lists[root] = members.size();
+				members.add(new ArrayList<User>());
+			}
+			members.get(lists[root]).add(users[i]);
+		}
+		for (List<User> list : members) {
+			Infection infection = new Infection(this, list);
+			for (User user : list) user.setInfection(infection);
+		}
+		return users;
+	}
+	
+	// Recreates the users, edges, infections and conditions in a snapshot,
+	// into this empty population
+	void restore(Snapshot snapshot) {
+		int limit = snapshot.userIDLimit();
+		User[] users = new User[limit];
+		for (int id = 0; id < limit; id++) {
+			if (snapshot.exists(id)) {
+				users[id] = new User(snapshot.userName(id), this, true);
+				userCount++;
+			} else {
+				// Deleted users still use up their IDs
+				incrementUserID();
+			}
+			allUsers.add(users[id]);
+		}
+		
+		int edges = snapshot.countEdges();
+		int[] coaches = new int[edges], pupils = new int[edges];
+		for (int id = 0, edge = 0; id < limit; id++) {
+			for (int end = snapshot.edgeStart(id + 1); edge < end; edge++) {
+				coaches[edge] = id;
+				pupils[edge] = snapshot.pupil(edge);
+				if (snapshot.isTreeEdge(edge)) forest.add(id, pupils[edge]);
+			}
+		}
+		for (int edge = 0; edge < edges; edge++) forest.add(coaches[edge], pupils[edge]);
+		graph.addEdges(coaches, pupils, edges);
+		coaches = pupils = null;
+		
+		// Sort the users into their infections
+		int components = snapshot.countInfections();
+		int[] sizes = new int[components];
+		for (int id = 0; id < limit; id++) {
+			if (users[id] != null) sizes[snapshot.infection(id)]++;
+		}
+		List<List<User>> members = new ArrayList<>(components);
+		for (int size : sizes) members.add(new ArrayList<User>(size));
+		for (int id = 0; id < limit; id++) {
+			if (users[id] != null) members.get(snapshot.infection(id)).add(users[id]);
+		}
+		Infection[] infections = new Infection[components];
+		for (int i = 0; i < components; i++) {
+			infections[i] = new Infection(this, members.get(i));
+			for (User user : members.get(i)) user.setInfection(infections[i]);
+		}
+		members = null;
+		
+		// Conditions that every user in an infection has are applied to the
+		// whole infection, and the rest to individual users
+		int words = Snapshot.words(limit);
+		for (int condition = 0; condition < snapshot.conditionCount(); condition++) {
+			String name = snapshot.conditionName(condition);
+			conditions.intern(name);
+			int[] counts = new int[components];
+			for (int w = 0; w < words; w++) {
+				for (long word = snapshot.conditionWord(condition, w); word != 0; word &= word - 1) {
+					counts[snapshot.infection((w << 6) + Long.numberOfTrailingZeros(word))]++;
+				}
+			}
+			for (int i = 0; i < components; i++) {
+				if (counts[i] > 0 && counts[i] == sizes[i]) infections[i].addCondition(name);
+			}
+			for (int w = 0; w < words; w++) {
+				for (long word = snapshot.conditionWord(condition, w); word != 0; word &= word - 1) {
+					int id = (w << 6) + Long.numberOfTrailingZeros(word);
+					int infection = snapshot.infection(id);
+					if (counts[infection] < sizes[infection]) users[id].addCondition(name);
+				}
+			}
+		}
+	}
+	
+	void checkBulkID(int id, int limit) {
+		if (id < 0 || id >= limit || (id < allUsers.size() && allUsers.get(id) == null)) {
+			throw new IllegalArgumentException("No such user: " + id);
+		}
+	}
+	
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
+	/**
+	 * Returns the user with the given ID, or null if there is no such user.
+	 */
+	public User getUser(int userID) {
+		if (userID < 0 || userID >= allUsers.size()) return null;
+		return allUsers.get(userID);
+	}
+	
+	/**
+	 * Returns the number of users in this population.
+	 */
+	public int countUsers() {
+		return userCount;
+	}
+	
+	/**
+	 * Returns one more than the largest user ID ever given out, which
+	 * will be the ID of the next user created.
+	 */
+	public int userIDLimit() {
+		return allUsers.size();
+	}
+	
+	CoachGraph getGraph() {
+		return graph;
+	}
+	
+	/**
+	 * Attaches a log which will record every change made to this population
+	 * from now on, or detaches the current one if log is null.
+	 * See {@link MutationLog}.
+	 */
+	public void setLog(MutationLog log) {
+		this.log = log;
+	}
+	
+	public MutationLog getLog() {
+		return log;
+	}
+	
+	SpanningForest getForest() {
+		return forest;
+	}
+	
+	ConditionRegistry getConditions() {
+		return conditions;
+	}
+	
+	/**
+	 * Returns a new set of all infections in this population. This takes
+	 * time proportional to the number of infections, not users.
+	 */
 	public Set<Infection> getInfections() {
-		Set<Infection> infections = new HashSet<>();
-		for (User user : allUsers) infections.add(user.getInfection());
+		flushSplits();
+		Set<Infection> infections = new HashSet<>(this.infections.size());
+		for (Infection infection : this.infections) infections.add(infection);
 		return infections;
 	}
 	
+	/**
+	 * Returns the number of infections in this population.
+	 */
+	public int countInfections() {
+		flushSplits();
+		return infections.size();
+	}
+	
+	/**
+	 * Returns the number of infections in this population with exactly
+	 * the given number of users.
+	 */
+	public int countInfectionsOfSize(int size) {
+		flushSplits();
+		return infections.count(size);
+	}
+	
+	/**
+	 * Returns the distinct sizes of infections in this population,
+	 * from largest to smallest.
+	 */
+	public int[] getInfectionSizes() {
+		flushSplits();
+		return infections.sizes();
+	}
+	
+	/**
+	 * Returns a number which changes whenever an infection is created,
+	 * merged, split or resized.
+	 */
+	public long getVersion() {
+		flushSplits();
+		return version;
+	}
+	
+	/**
+	 * Returns an immutable view of the current infections and their sizes, which
+	 * rollouts can be solved against on other threads while this population keeps
+	 * changing. The same view is returned until an infection is created, merged,
+	 * split or resized. Apply the result with {@link Population#applyRollout(String, List)}.
+	 */
+	public PopulationView getView() {
+		flushSplits();
+		if (view == null || view.getVersion() != version) view = new PopulationView(this, infections, version);
+		return view;
+	}
+	
+	/**
+	 * Returns whether or not the given group's infection is still exactly as it
+	 * was when its view was made: it has not been merged, split or resized since.
+	 */
+	public boolean isCurrent(PopulationView.Group group) {
+		flushSplits();
+		return group.isCurrent(this);
+	}
+	
+	/**
+	 * Infects every user in the given groups with the given condition, as long as
+	 * each of their infections is still current (see {@link Population#isCurrent(PopulationView.Group)}).
+	 * If any of them has changed, nobody is infected, and the rollout should be solved
+	 * again against a new view.
+	 * @return The total number of users infected, or -1 if any group has changed
+	 */
+	public int applyRollout(String condition, List<PopulationView.Group> groups) {
+		for (PopulationView.Group group : groups) {
+			if (!isCurrent(group)) return -1;
+		}
+		int infected = 0;
+		for (PopulationView.Group group : groups) {
+			group.getInfection().addCondition(condition);
+			infected += group.size();
+		}
+		return infected;
+	}
+	
+	/**
+	 * Sets whether or not removing coaches and deleting users should split up
+	 * infections right away. If not, they only mark the infections that may have
+	 * split up, and each of those is split in one traversal when 
+	 * {@link Population#flushSplits()} is called, or the next time anyone looks at
+	 * infections: {@link User#getInfection()}, {@link Population#getInfections()},
+	 * or a rollout call. This is much faster for bursts of removals from the same
+	 * infections. Turning this off flushes any pending splits.
+	 */
+	public void setDeferSplits(boolean defer) {
+		if (!defer) flushSplits();
+		deferSplits = defer;
+	}
+	
+	public boolean getDeferSplits() {
+		return deferSplits;
+	}
+	
+	/**
+	 * Splits up every infection which may have split since the last flush, 
+	 * with one traversal per infection.
+	 * @return The number of infections that were checked
+	 */
+	public int flushSplits() {
+		if (pendingSplits.isEmpty()) return 0;
+		List<Infection> pending = new ArrayList<>(pendingSplits);
+		pendingSplits.clear();
+		
+		// Some of these may have been merged into others since they were marked
+		Set<Infection> roots = new HashSet<>();
+		for (Infection infection : pending) {
+			Infection root = infection.find();
+			if (roots.add(root)) root.splitComponents();
+		}
+		return roots.size();
+	}
+	
+	/** Marks the given infection to be split up at the next flush */
+	void splitLater(Infection infection) {
+		pendingSplits.add(infection);
+	}
+	
+	boolean isSplitPending(Infection infection) {
+		return !pendingSplits.isEmpty() && pendingSplits.contains(infection);
+	}
+	
+	void infectionCreated(Infection infection) {
+		infections.add(infection);
+		conditions.reindex(infection, infection.size());
+		infection.stamp = ++version;
+	}
+	
+	void infectionResized(Infection infection, int oldSize) {
+		infections.remove(infection, oldSize);
+		infections.add(infection);
+		conditions.reindex(infection, oldSize);
+		infection.stamp = ++version;
+	}
+	
+	void infectionRemoved(Infection infection, int oldSize) {
+		infections.remove(infection, oldSize);
+		conditions.unindex(infection, oldSize);
+		infection.stamp = -1;
+		version++;
+	}
+	
 	/**
 	 * Calls {@link Population#limitedInfection(String, int, int)} with 
 	 * threshold = 0.
@@ -60,38 +531,30 @@ public class Population {
 	 * @return The total number of users infected.
 	 */
 	public int limitedInfection(String condition, int n, int threshold) {
+		checkBudget(planLimitedInfection(n, threshold));
 		
-		Set<Infection> infections = getInfections();
-
-		int infected = 0;
 		// We use an approximating version of SubsetSum here, rather than the exact one,
 		// because we want the closest possible sum, which means our "threshold"
-		// for SubsetSum is infinity, which breaks the dynamic programming solution
-		List<Infection> subset = SubsetSum.subsetSumApproximate(infections, n - infected);
-		
-		// Because this is an approximation, we can actually try to find more
-		// infections that might fit in the gaps
-		while (subset.size() > 0) {
-			// First, infect the subset we've chosen and count the infected
-			for (Infection infection : subset) {
-				infection.addCondition(condition);
-				infected += infection.size();
-			}
-			// remove the infections we've already selected from the list
-			infections.removeAll(subset);
-			// see if there's another subset that will fit in the gaps
-			subset = SubsetSum.subsetSumApproximate(infections, n - infected);
+		// for SubsetSum is infinity, which breaks the dynamic programming solution.
+		// It takes infections from largest to smallest if they fit in the remaining space,
+		// and anything that didn't fit when we reached it can't fit later, so a single 
+		// pass over our histogram fills all the gaps it can.
+		List<Infection> subset = SubsetSum.subsetSumApproximate(infections, n);
+		
+		// Infect the subset we've chosen and count the infected
+		int infected = 0;
+		for (Infection infection : subset) {
+			infection.addCondition(condition);
+			infected += infection.size();
 		}
 		
 		// If we've reached the threshold, or included all infections, we're done
-		if (infections.size() == 0 || Math.abs(infected - n) <= threshold) {
+		if (subset.size() == infections.size() || Math.abs(infected - n) <= threshold) {
 			return infected;
 		}
 		
 		// If not, choose the largest infection and infect the remaining number
-		List<Infection> list = new ArrayList<Infection>(infections);
-		Collections.sort(list, SubsetSum.COUNTABLE_COMPARATOR);
-		Infection largest = list.get(0);
+		Infection largest = largestInfectionExcept(new HashSet<>(subset));
 		
 		// There must be at least (n - infected) users in this infection
 		// So we know we've now infected n users
@@ -99,38 +562,326 @@ public class Population {
 		return n;
 	}
 	
+	/**
+	 * Grows the number of users infected with the given condition to approximately n,
+	 * keeping everyone who already has it. Only infections where no one has the
+	 * condition yet are considered, and they are chosen as in
+	 * {@link Population#limitedInfection(String, int, int)}: whole infections if that gets
+	 * within threshold of n, and otherwise part of one more. If at least (n - threshold)
+	 * users already have the condition, nothing changes.
+	 * 
+	 * The first call for a condition indexes the infections where no one has it yet, by
+	 * size, and the index is kept up to date from then on. Each call then looks at each
+	 * uninfected size at most once, and only at the infections it infects, so ramping up
+	 * in small steps doesn't cost a pass over the whole population each time.
+	 * @param condition The condition with which to infect users
+	 * @param n The desired total number of users with the condition
+	 * @param threshold The threshold of users less than n which can be infected
+	 * if this will allow all newly infected groups to maintain the same condition.
+	 * @return The total number of users with the condition
+	 */
+	public int rampInfection(String condition, int n, int threshold) {
+		checkBudget(planLimitedInfection(n, threshold));
+		int id = conditions.intern(condition);
+		int infected = conditions.count(id);
+		if (infected >= n - threshold) return infected;
+		
+		// Take the largest uninfected infections that fit in what's left, and
+		// remember the largest one that didn't, in case we need part of it
+		SizeHistogram<Infection> uninfected = conditions.uninfected(id, infections);
+		int remaining = n - infected;
+		List<Infection> subset = new ArrayList<>();
+		Infection largest = null;
+		for (int size : uninfected.sizes()) {
+			if (remaining == 0) break;
+			if (size > remaining && largest != null) continue;
+			for (Infection infection : uninfected.get(size)) {
+				if (size > remaining) {
+					if (largest == null) largest = infection;
+					break;
+				}
+				subset.add(infection);
+				remaining -= size;
+			}
+		}
+		
+		for (Infection infection : subset) {
+			infection.addCondition(condition);
+			infected += infection.size();
+		}
+		if (largest == null || Math.abs(infected - n) <= threshold) return infected;
+		
+		// There are at least (n - infected) users in this infection
+		largest.infectUpTo(condition, n - infected);
+		return n;
+	}
+	
+	// Finds the largest infection not in the given set, looking only at the
+	// excluded infections in each size's bucket, from largest to smallest
+	private Infection largestInfectionExcept(Set<Infection> excluded) {
+		for (int size : infections.sizes()) {
+			for (Infection infection : infections.get(size)) {
+				if (!excluded.contains(infection)) return infection;
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * If threshold if 0, infects exactly n Users with the given condition without 
 	 * breaking up any infection groups, or fails if this is not possible.
 	 * If threshold is not 0, the exact number of infected users can be
 	 * m, where (n - threshold <= m <= n + threshold) and abs(m-n) is minimized.
 	 * Returns the actual number of users infected, or -1 for failure.
+	 * 
+	 * The strategy is chosen by {@link Population#planLimitedInfectionExact(int, int)}.
+	 * If the exact solver's table would be larger than the cell budget 
+	 * (see {@link Population#setExactCellBudget(long)}) or the memory budget
+	 * (see {@link Population#setMemoryBudget(long)}), this instead uses 
+	 * {@link SubsetSum#subsetSumApproximate(SizeHistogram, int, int, double)}, which may
+	 * not minimize abs(m-n), and may fail even if a solution exists. In either case, 
+	 * {@link Population#getLastError()} reports how close the result was to n.
 	 * @param condition The condition with which to infect users
 	 * @param n The number of users to infect
 	 * @param threshold A margin of error n.
 	 * @return The exact number of users infected, or -1 for failure
+	 * @throws IllegalStateException If the plan exceeds the rollout budget
+	 * (see {@link Population#setRolloutBudget(long, long)})
 	 */
 	public int limitedInfectionExact(String condition, int n, int threshold) {
-		Set<Infection> infections = getInfections();
-		List<Infection> subset = SubsetSum.subsetSum(infections, n, 0);
-		if (subset == null) return -1;
+		RolloutPlan plan = planLimitedInfectionExact(n, threshold);
+		checkBudget(plan);
+		lastPlan = plan;
+		
+		List<Infection> subset;
+		if (plan.isApproximate()) {
+			// The exact table would be too big, so settle for a bounded error
+			Approximation<Infection> approximation = 
+					SubsetSum.subsetSumApproximate(infections, n, threshold, epsilon);
+			lastError = approximation.error();
+			if (lastError > threshold) return -1;
+			subset = approximation.subset;
+		} else {
+			if (plan.isReusable()) {
+				reachable = new ReachableSums<>(infections, version, memoryBudget, parallelPool, parallelCutoff);
+			}
+			if (plan.getStrategy() == Strategy.CACHED || plan.isReusable()) {
+				subset = reachable.subsetSum(n, threshold);
+			} else {
+				subset = SubsetSum.subsetSum(infections, n, threshold, memoryBudget, parallelPool, parallelCutoff);
+			}
+			lastError = -1;
+			if (subset == null) return -1;
+		}
+		
 		int infected = 0;
 		for (Infection infection : subset) {
 			infected += infection.size();
 			infection.addCondition(condition);
 		}
+		lastError = Math.abs(infected - n);
 		return infected;
 	}
 	
+	/**
+	 * Returns the plan {@link Population#limitedInfection(String, int, int)} would
+	 * use for the given arguments, without infecting anyone.
+	 */
+	public RolloutPlan planLimitedInfection(int n, int threshold) {
+		flushSplits();
+		return RolloutPlan.greedy(infections, n, threshold);
+	}
+	
+	/**
+	 * Returns the plan {@link Population#limitedInfectionExact(String, int, int)} would
+	 * use for the given arguments, without infecting anyone. This takes time proportional
+	 * to the number of distinct infection sizes.
+	 */
+	public RolloutPlan planLimitedInfectionExact(int n, int threshold) {
+		flushSplits();
+		if (reachable != null && reachable.version != version) reachable = null;
+		return RolloutPlan.exact(infections, n, threshold, exactCellBudget, memoryBudget, epsilon,
+				parallelPool, parallelCutoff, reachable, reuseTables);
+	}
+	
+	/**
+	 * Sets whether or not {@link Population#limitedInfectionExact(String, int, int)}
+	 * should build a table of every reachable sum, rather than just those up to 
+	 * n + threshold, when that fits in the budgets and is at most
+	 * {@link RolloutPlan#REUSE_FACTOR} times wider. This costs a little more for the
+	 * first call, but later calls with any n and threshold only need a traceback, as
+	 * long as no infections are created, merged, split or resized in between. Calls with
+	 * n much smaller than the population still build the narrow table. The default is true.
+	 */
+	public void setReuseTables(boolean reuse) {
+		reuseTables = reuse;
+		if (!reuse) reachable = null;
+		view = null;
+	}
+	
+	public boolean getReuseTables() {
+		return reuseTables;
+	}
+	
+	private void checkBudget(RolloutPlan plan) {
+		if (!plan.fits(rolloutCellLimit, rolloutByteLimit)) {
+			throw new IllegalStateException("Rollout exceeds budget: " + plan.explain());
+		}
+	}
+	
+	/**
+	 * Sets the largest number of cells and bytes a rollout call's plan may need.
+	 * Calls which would need more are refused with an {@link IllegalStateException}
+	 * before they do any work. By default there is no limit.
+	 */
+	public void setRolloutBudget(long cells, long bytes) {
+		rolloutCellLimit = cells;
+		rolloutByteLimit = bytes;
+		view = null;
+	}
+	
+	public long getRolloutCellLimit() {
+		return rolloutCellLimit;
+	}
+	
+	public long getRolloutByteLimit() {
+		return rolloutByteLimit;
+	}
+	
+	/**
+	 * Returns the plan used by the last call to 
+	 * {@link Population#limitedInfectionExact(String, int, int)}, or null if there was none.
+	 */
+	public RolloutPlan getLastPlan() {
+		return lastPlan;
+	}
+	
+	/**
+	 * Sets the largest number of cells (items * possible sums) for which 
+	 * {@link Population#limitedInfectionExact(String, int, int)} will use the exact
+	 * solver, before falling back on an approximation. The default is 2^34, which takes
+	 * a few seconds, since the solver computes 64 cells at a time.
+	 */
+	public void setExactCellBudget(long cells) {
+		exactCellBudget = cells;
+		view = null;
+	}
+	
+	public long getExactCellBudget() {
+		return exactCellBudget;
+	}
+	
+	/**
+	 * Sets the relative error allowed when {@link Population#limitedInfectionExact(String, int, int)}
+	 * has to fall back on an approximation. Smaller values are more accurate, but take
+	 * proportionally more time and memory. The default is 0.001.
+	 */
+	public void setEpsilon(double epsilon) {
+		this.epsilon = epsilon;
+		view = null;
+	}
+	
+	public double getEpsilon() {
+		return epsilon;
+	}
+	
+	/**
+	 * Sets the number of bytes the exact solver may use for its table. Tables that
+	 * would be larger than this only keep as many checkpoint rows as fit, and recompute
+	 * the others during the traceback: at the cost of about twice the time with room for
+	 * about 2 * sqrt(items) rows of width / 8 bytes each, and of about log2(items) times
+	 * the time with less room than that, down to about log2(items) rows. Tables too big
+	 * even for that are approximated, as with the cell budget. The default is
+	 * {@link SubsetSum#DEFAULT_MEMORY_BUDGET}.
+	 */
+	public void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+		view = null;
+	}
+	
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	/**
+	 * Sets the pool used to compute wide rows of the exact solver's table in parallel,
+	 * or null (the default) to always compute them sequentially. Each row only depends
+	 * on the one before it, so it is split into chunks which are computed in parallel,
+	 * one row at a time. The results are exactly the same either way.
+	 */
+	public void setParallelPool(ForkJoinPool pool) {
+		parallelPool = pool;
+		view = null;
+	}
+	
+	public ForkJoinPool getParallelPool() {
+		return parallelPool;
+	}
+	
+	/**
+	 * Sets the number of columns (possible sums) below which rows are always computed
+	 * sequentially, since it isn't worth splitting them up. The default is
+	 * {@link SubsetSum#DEFAULT_PARALLEL_CUTOFF}.
+	 */
+	public void setParallelCutoff(int columns) {
+		parallelCutoff = columns;
+		view = null;
+	}
+	
+	public int getParallelCutoff() {
+		return parallelCutoff;
+	}
+	
+	/**
+	 * Returns the difference between the number of users infected by the last
+	 * call to {@link Population#limitedInfectionExact(String, int, int)} and the number
+	 * requested. If that call failed, this is the smallest difference that was found, 
+	 * or -1 if the exact solver found that none was possible.
+	 */
+	public int getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * Returns whether or not the last call to {@link Population#limitedInfectionExact(String, int, int)}
+	 * had to fall back on an approximation, because the exact solver's table would be too big.
+	 */
+	public boolean wasLastApproximate() {
+		return lastPlan != null && lastPlan.isApproximate();
+	}
+	
+	/**
+	 * Calls {@link Population#evaluateConditions(int[], String[], ForkJoinPool)}
+	 * without a pool.
+	 */
+	public long[] evaluateConditions(int[] userIDs, String[] conditions) {
+		return evaluateConditions(userIDs, conditions, null);
+	}
+	
+	/**
+	 * Returns which of the given conditions each of the given users has, all at once,
+	 * as a mask for each user where bit j is set if they have conditions[j]. Deleted
+	 * and unknown users have none of them. This is much faster than calling
+	 * {@link User#hasCondition(String)} for each pair, since each condition is only looked
+	 * up once, and users are visited in order of ID, without creating any objects.
+	 * @param userIDs The users, in any order, though sorted IDs save a sort
+	 * @param conditions At most 64 conditions
+	 * @param pool If not null, very large batches are split up and evaluated on this
+	 * pool in parallel, and nothing else may change the population in the meantime
+	 */
+	public long[] evaluateConditions(int[] userIDs, String[] conditions, ForkJoinPool pool) {
+		flushSplits();
+		return ConditionBatch.evaluate(this, userIDs, conditions, pool);
+	}
+	
 	/**
 	 * Returns the number of users infected with a given test condition.
+	 * This count is kept up to date as users are infected, so this takes constant time.
 	 * @param condition The condition
 	 * @return The number infected
 	 */
 	public int countUsersWithCondition(String condition) {
-		int n = 0;
-		for (User user : allUsers) if (user.hasCondition(condition)) n++;
-		return n;
+		return conditions.count(condition);
 	}
 	
 }
@@ -0,0 +1,187 @@
+package org.khanacademy.infection;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.khanacademy.infection.SubsetSum.Approximation;
+import org.khanacademy.infection.SubsetSum.ICountable;
+
+/**
+ * An immutable view of the infections of a {@link Population} as they were at one
+ * version, returned by {@link Population#getView()}, which rollouts can be solved
+ * against on another thread while the population keeps changing.
+ *
+ * A view copies each infection's size once, into a {@link SizeHistogram} of its own,
+ * along with the IDs of its users. Those are copied on write: each infection keeps
+ * the array of IDs it last handed out until it changes, so making a view takes time
+ * proportional to the number of infections, plus the users of the infections that
+ * changed since the last view. Views are also shared: the population keeps handing
+ * out the same one until its infections change.
+ * Each {@link Group} remembers its infection's stamp, which changes whenever it is
+ * merged, split or resized, and {@link Population#applyRollout(String, List)} only
+ * infects the chosen groups if none of their stamps have changed.
+ *
+ * Everything but {@link Group#getInfection()} only reads the view, so it is safe to
+ * use from any number of threads at once. Solvers share any table the view caches,
+ * but each traceback recomputes rows into scratch space of its own.
+ */
+public final class PopulationView {
+
+	/** An infection, as it was when the view was made */
+	public static final class Group implements ICountable {
+		private final PopulationView view;
+		private final Infection infection;
+		private final int[] members;
+		private final long stamp;
+
+		private Group(PopulationView view, Infection infection) {
+			this.view = view;
+			this.infection = infection;
+			this.members = infection.memberIDs();
+			this.stamp = infection.stamp;
+		}
+
+		/** Returns the number of users who were in the infection */
+		@Override
+		public int size() {
+			return members.length;
+		}
+
+		/** Returns the IDs of the users who were in the infection */
+		public int[] getUserIDs() {
+			return members.clone();
+		}
+
+		/**
+		 * Returns the live infection, which is not safe to look at while
+		 * the population is changing.
+		 */
+		public Infection getInfection() {
+			return infection;
+		}
+
+		// Whether or not the infection is unchanged since the view was made
+		boolean isCurrent(Population population) {
+			return view.population == population && infection.stamp == stamp;
+		}
+	}
+
+	private final Population population;
+	private final long version;
+	private final SizeHistogram<Group> groups = new SizeHistogram<>();
+	private final int users;
+
+	// The population's rollout settings when the view was made
+	private final long exactCellBudget, memoryBudget, rolloutCellLimit, rolloutByteLimit;
+	private final double epsilon;
+	private final ForkJoinPool parallelPool;
+	private final int parallelCutoff;
+	private final boolean reuseTables;
+
+	// The exact solver's table, if a solve built one covering every sum,
+	// which stays valid for as long as the view does
+	private ReachableSums<Group> reachable;
+
+	PopulationView(Population population, SizeHistogram<Infection> infections, long version) {
+		this.population = population;
+		this.version = version;
+		int users = 0;
+		for (Infection infection : infections) {
+			groups.add(new Group(this, infection));
+			users += infection.size();
+		}
+		this.users = users;
+		exactCellBudget = population.getExactCellBudget();
+		memoryBudget = population.getMemoryBudget();
+		parallelPool = population.getParallelPool();
+		parallelCutoff = population.getParallelCutoff();
+		rolloutCellLimit = population.getRolloutCellLimit();
+		rolloutByteLimit = population.getRolloutByteLimit();
+		epsilon = population.getEpsilon();
+		reuseTables = population.getReuseTables();
+	}
+
+	/** Returns the population's version when this view was made */
+	public long getVersion() {
+		return version;
+	}
+
+	/** Returns the number of users who were in the population */
+	public int countUsers() {
+		return users;
+	}
+
+	/** Returns the number of infections */
+	public int countInfections() {
+		return groups.size();
+	}
+
+	/** Returns the number of infections with exactly the given number of users */
+	public int countInfectionsOfSize(int size) {
+		return groups.count(size);
+	}
+
+	/** Returns the distinct sizes of infections, from largest to smallest */
+	public int[] getInfectionSizes() {
+		return groups.sizes();
+	}
+
+	/**
+	 * Returns the infections whose total size is as close to n as possible, taken
+	 * greedily as in {@link Population#limitedInfection(String, int, int)}, but
+	 * without breaking up an infection to make up the difference.
+	 */
+	public List<Group> choose(int n) {
+		checkBudget(RolloutPlan.greedy(groups, n, 0));
+		return SubsetSum.subsetSumApproximate(groups, n);
+	}
+
+	/**
+	 * Returns infections whose total size is within threshold of n, and as
+	 * close to it as possible, as {@link Population#limitedInfectionExact(String, int, int)}
+	 * would choose them, or null if there are none.
+	 * @throws IllegalStateException If the plan exceeds the population's rollout budget
+	 */
+	public List<Group> chooseExact(int n, int threshold) {
+		ReachableSums<Group> cached = reachable();
+		RolloutPlan plan = plan(n, threshold, cached);
+		checkBudget(plan);
+		if (plan.isApproximate()) {
+			Approximation<Group> approximation = SubsetSum.subsetSumApproximate(groups, n, threshold, epsilon);
+			return approximation.error() > threshold ? null : approximation.subset;
+		}
+		if (plan.isReusable()) {
+			cached = new ReachableSums<>(groups, version, memoryBudget, parallelPool, parallelCutoff);
+			synchronized (this) {
+				reachable = cached;
+			}
+		}
+		if (plan.getStrategy() == RolloutPlan.Strategy.CACHED || plan.isReusable()) {
+			return cached.subsetSum(n, threshold);
+		}
+		return SubsetSum.subsetSum(groups, n, threshold, memoryBudget, parallelPool, parallelCutoff);
+	}
+
+	/**
+	 * Returns the plan {@link PopulationView#chooseExact(int, int)} would use for
+	 * the given arguments, without solving anything.
+	 */
+	public RolloutPlan planExact(int n, int threshold) {
+		return plan(n, threshold, reachable());
+	}
+
+	private RolloutPlan plan(int n, int threshold, ReachableSums<Group> cached) {
+		return RolloutPlan.exact(groups, n, threshold, exactCellBudget, memoryBudget, epsilon,
+				parallelPool, parallelCutoff, cached, reuseTables);
+	}
+
+	private synchronized ReachableSums<Group> reachable() {
+		return reachable;
+	}
+
+	private void checkBudget(RolloutPlan plan) {
+		if (!plan.fits(rolloutCellLimit, rolloutByteLimit)) {
+			throw new IllegalStateException("Rollout exceeds budget: " + plan.explain());
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.khanacademy.infection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.khanacademy.infection.SubsetSum.ICountable;
+import org.khanacademy.infection.SubsetSum.Pieces;
+
+/**
+ * Every sum that can be made from the items of a {@link SizeHistogram}, kept
+ * so that the exact {@link SubsetSum} solver can answer any number of queries
+ * with just a traceback, as long as the histogram doesn't change.
+ *
+ * Unlike a single call to the solver, the table covers every sum from 0 to the
+ * total size of the items, rather than stopping at n + threshold, so it costs more
+ * to build but works for any n. Since it reads the histogram's items when it
+ * answers, it must be thrown away as soon as the histogram changes: the
+ * {@link Population} that owns it keeps track of that with a version number.
+ */
+final class ReachableSums<T extends ICountable> {
+
+	/** The version of the histogram this was built for */
+	final long version;
+
+	private final Pieces<T> pieces;
+	// The table, or null if there are no pieces
+	private final SumTable table;
+
+	// Builds the table with the given settings, as in SumTable#build
+	ReachableSums(SizeHistogram<T> histogram, long version, 
+			long memoryBudget, ForkJoinPool pool, int parallelCutoff) {
+		this.version = version;
+		pieces = new Pieces<>(histogram);
+		int[] items = pieces.items;
+		table = items.length == 0 ? null : SumTable.build(items, 0, width(items),
+				memoryBudget, pool, parallelCutoff);
+	}
+
+	/**
+	 * Returns the number of columns in the table for the given (positive) items:
+	 * every sum from 0 to their total.
+	 */
+	static int width(int[] items) {
+		int sum = 0;
+		for (int v : items) sum += v;
+		return sum + 1;
+	}
+
+	/** Returns the number of columns in the table */
+	int width() {
+		return table == null ? 0 : table.width;
+	}
+
+	/** Returns whether or not the table keeps every row in memory */
+	boolean isFull() {
+		return table == null || table.isFull();
+	}
+
+	/** Returns the number of pieces the items were split into */
+	int pieces() {
+		return pieces.items.length;
+	}
+
+	/**
+	 * Returns a subset of the items as {@link SubsetSum#subsetSum(SizeHistogram, int, int)}
+	 * would, or null upon failure. This only takes time proportional to the number
+	 * of pieces plus the threshold, unless the table was checkpointed.
+	 */
+	List<T> subsetSum(int n, int threshold) {
+		if (table == null) return Math.abs(n) <= threshold ? new ArrayList<T>() : null;
+		int[] indices = SubsetSum.traceback(table, pieces.items, n, threshold);
+		if (indices == null) return null;
+		return pieces.toSubset(indices);
+	}
+}
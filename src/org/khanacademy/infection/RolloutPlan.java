@@ -0,0 +1,240 @@
+package org.khanacademy.infection;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.khanacademy.infection.SubsetSum.ICountable;
+import org.khanacademy.infection.SubsetSum.Pieces;
+
+/**
+ * The strategy a {@link Population} rollout call will use to choose infections,
+ * along with estimates of how much time and memory it will take.
+ *
+ * Plans are made from the sizes of the infections alone (the number of infections,
+ * their distinct sizes, n and threshold), which takes time proportional to the number
+ * of distinct sizes, so it is cheap to plan a call before deciding whether to make it.
+ * Use {@link RolloutPlan#explain()} to log what was decided and why.
+ */
+public final class RolloutPlan {
+
+	/** The ways a rollout call can choose infections */
+	public enum Strategy {
+		/** Take the largest infections that fit, in one pass over the sizes */
+		GREEDY,
+		/** The exact solver, keeping its whole table in memory */
+		EXACT,
+		/** The exact solver, keeping only checkpoint rows and recomputing the rest */
+		EXACT_CHECKPOINTED,
+		/** The FPTAS from {@link SubsetSum#subsetSumApproximate(SizeHistogram, int, int, double)} */
+		APPROXIMATE,
+		/** A traceback through the exact solver's table from an earlier call */
+		CACHED
+	}
+
+	/**
+	 * The most times wider than the narrow table for n + threshold that a table of
+	 * every sum may be for the exact solver to build it, so it can be reused
+	 */
+	public final static int REUSE_FACTOR = 4;
+
+	// Roughly the bytes kept per sum in the approximation's list: the sums and
+	// nodes for the list and its merged copy, plus the nodes' items and parents
+	private final static int APPROXIMATE_BYTES_PER_SUM = 48;
+	// And the bytes per infection the greedy strategy holds on to
+	private final static int GREEDY_BYTES_PER_ITEM = 48;
+
+	private final Strategy strategy;
+	private final int components, distinctSizes, pieces, n, threshold;
+	private final long cells, bytes;
+	private final boolean parallel;
+	private final String reason;
+	// Whether or not the exact solver's table covers every sum, so it can be reused
+	private boolean reusable;
+
+	private RolloutPlan(Strategy strategy, int components, int distinctSizes, int pieces,
+			int n, int threshold, long cells, long bytes, boolean parallel, String reason) {
+		this.strategy = strategy;
+		this.components = components;
+		this.distinctSizes = distinctSizes;
+		this.pieces = pieces;
+		this.n = n;
+		this.threshold = threshold;
+		this.cells = cells;
+		this.bytes = bytes;
+		this.parallel = parallel;
+		this.reason = reason;
+	}
+
+	/**
+	 * Plans a call to {@link Population#limitedInfection(String, int, int)},
+	 * which always uses the greedy strategy.
+	 */
+	static RolloutPlan greedy(SizeHistogram<?> histogram, int n, int threshold) {
+		int components = histogram.size(), distinctSizes = histogram.distinctSizes();
+		return new RolloutPlan(Strategy.GREEDY, components, distinctSizes, 0, n, threshold,
+				(long) distinctSizes + components, (long) components * GREEDY_BYTES_PER_ITEM,
+				false, "closest sum requested");
+	}
+
+	/**
+	 * Plans a call to {@link Population#limitedInfectionExact(String, int, int)}.
+	 * This chooses the cheapest exact strategy that fits in the given cell and memory
+	 * budgets, or the approximation if neither does. Rows at least parallelCutoff wide
+	 * are computed in parallel if there is a pool.
+	 * If cached is not null, its table is reused. Otherwise, if reuse is true,
+	 * this prefers building a table covering every sum, if that fits in the budgets
+	 * and is at most {@link RolloutPlan#REUSE_FACTOR} times as wide as the narrow table,
+	 * so the first call never costs much more than it would without reuse.
+	 */
+	static <T extends ICountable> RolloutPlan exact(SizeHistogram<T> histogram,
+			int n, int threshold, long cellBudget, long memoryBudget, double epsilon,
+			ForkJoinPool pool, int parallelCutoff, ReachableSums<T> cached, boolean reuse) {
+		if (cached != null) {
+			// Tracing back reads a cell per piece, plus a few for the threshold,
+			// unless the rows have to be recomputed from checkpoints
+			long cells = cached.isFull() ? cached.pieces() + 2L * threshold + 1 : 
+				(long) cached.pieces() * cached.width();
+			return new RolloutPlan(Strategy.CACHED, histogram.size(), histogram.distinctSizes(),
+					cached.pieces(), n, threshold, cells, 0, false, "infections unchanged since last call");
+		}
+		
+		Pieces<T> pieces = new Pieces<>(histogram);
+		int width = SubsetSum.tableWidth(pieces.items, n, threshold);
+		int fullWidth = ReachableSums.width(pieces.items);
+		if (reuse && fullWidth <= (long) REUSE_FACTOR * width) {
+			RolloutPlan plan = exact(histogram, pieces, fullWidth, n, threshold, cellBudget,
+					memoryBudget, pool, parallelCutoff, "building reusable table");
+			if (plan != null) {
+				plan.reusable = true;
+				return plan;
+			}
+		}
+		RolloutPlan plan = exact(histogram, pieces, width, n, threshold, cellBudget,
+				memoryBudget, pool, parallelCutoff, "table fits in budgets");
+		if (plan != null) return plan;
+
+		int length = pieces.items.length;
+		long cells = (long) length * width;
+		long sums = approximateSums(length, n + threshold, epsilon);
+		long checkpointedBytes = SumTable.checkpointedBytes(length, width, memoryBudget);
+		String reason = cells > cellBudget ?
+				"exact table of " + cells + " cells exceeds cell budget" : checkpointedBytes > memoryBudget ?
+				"exact table of " + checkpointedBytes + " bytes exceeds memory budget" :
+				"checkpointed table of " + SumTable.checkpointedCells(length, width, memoryBudget) +
+				" cells exceeds cell budget";
+		return new RolloutPlan(Strategy.APPROXIMATE, histogram.size(), histogram.distinctSizes(),
+				length, n, threshold, sums * length, sums * APPROXIMATE_BYTES_PER_SUM, false, reason);
+	}
+	
+	// Plans the cheapest exact strategy for a table of the given width, or returns
+	// null if none of them fit in the budgets
+	private static RolloutPlan exact(SizeHistogram<?> histogram, Pieces<?> pieces, int width,
+			int n, int threshold, long cellBudget, long memoryBudget, ForkJoinPool pool,
+			int parallelCutoff, String reason) {
+		int length = pieces.items.length;
+		long cells = (long) length * width;
+		boolean parallel = pool != null && width >= parallelCutoff;
+
+		long fullBytes = SumTable.fullBytes(length, width);
+		if (cells <= cellBudget && fullBytes <= memoryBudget) {
+			return new RolloutPlan(Strategy.EXACT, histogram.size(), histogram.distinctSizes(),
+					length, n, threshold, cells, fullBytes, parallel, reason);
+		}
+
+		// A checkpointed table computes rows again during the traceback, once
+		// if there's room for whole segments, and more often the less room there is
+		long checkpointedBytes = SumTable.checkpointedBytes(length, width, memoryBudget);
+		long checkpointedCells = SumTable.checkpointedCells(length, width, memoryBudget);
+		if (checkpointedCells <= cellBudget && checkpointedBytes <= memoryBudget) {
+			return new RolloutPlan(Strategy.EXACT_CHECKPOINTED, histogram.size(),
+					histogram.distinctSizes(), length, n, threshold, checkpointedCells, checkpointedBytes,
+					parallel, "full table of " + fullBytes + " bytes exceeds memory budget");
+		}
+		return null;
+	}
+
+	// An upper bound on the length of the approximation's trimmed list: it only
+	// keeps sums up to target which differ by a factor of (1 + epsilon / 2m)
+	private static long approximateSums(int m, int target, double epsilon) {
+		if (target <= 0) return 1;
+		double delta = epsilon / (2.0 * Math.max(1, m));
+		double sums = Math.ceil(Math.log(target) / Math.log1p(delta)) + 2;
+		return (long) Math.min(sums, (double) target + 1);
+	}
+
+	/** Returns the strategy chosen */
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/** Returns whether or not the chosen strategy may not find the best subset */
+	public boolean isApproximate() {
+		return strategy == Strategy.APPROXIMATE;
+	}
+
+	/**
+	 * Returns whether or not the exact solver's table will cover every sum, so
+	 * that later calls can reuse it until the infections change.
+	 */
+	public boolean isReusable() {
+		return reusable;
+	}
+
+	/** Returns whether or not the exact solver will compute its rows in parallel */
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Returns the estimated number of cells the strategy will compute, which
+	 * is proportional to the time it will take. The exact strategies compute
+	 * 64 cells at a time, so their cells are much cheaper than the others'.
+	 */
+	public long getEstimatedCells() {
+		return cells;
+	}
+
+	/** Returns the estimated number of bytes the strategy will allocate */
+	public long getEstimatedBytes() {
+		return bytes;
+	}
+
+	/** Returns the number of infections the plan was made for */
+	public int getComponents() {
+		return components;
+	}
+
+	/** Returns the number of distinct infection sizes the plan was made for */
+	public int getDistinctSizes() {
+		return distinctSizes;
+	}
+
+	/**
+	 * Returns whether or not this plan's estimates are within the given budgets.
+	 */
+	public boolean fits(long cellLimit, long byteLimit) {
+		return cells <= cellLimit && bytes <= byteLimit;
+	}
+
+	/**
+	 * Returns a one-line description of this plan and the inputs it was
+	 * made from, for logging.
+	 */
+	public String explain() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(strategy);
+		if (parallel) sb.append(" (parallel)");
+		if (reusable) sb.append(" (reusable)");
+		sb.append(": ").append(cells).append(" cells, ").append(bytes).append(" bytes");
+		sb.append(" for n=").append(n).append(", threshold=").append(threshold);
+		sb.append(", ").append(components).append(" infections, ");
+		sb.append(distinctSizes).append(" distinct sizes");
+		if (strategy != Strategy.GREEDY) sb.append(", ").append(pieces).append(" pieces");
+		sb.append(" (").append(reason).append(")");
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return explain();
+	}
+}
@@ -0,0 +1,128 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.khanacademy.infection.SubsetSum.ICountable;
+
+/**
+ * Groups {@link ICountable} items into buckets by size, so that algorithms
+ * can work with (size, count) pairs, rather than each item individually.
+ * Populations often have many items with only a few distinct sizes.
+ * 
+ * Items are bucketed by their size when they are added, so an item's size should
+ * not change while it is in the histogram. To update an item, remove it using its
+ * old size and add it again.
+ */
+public class SizeHistogram<T extends ICountable> implements Iterable<T> {
+
+	private final Map<Integer, Set<T>> buckets = new HashMap<>();
+	private int items;
+	
+	public SizeHistogram() {
+	}
+	
+	public SizeHistogram(Collection<T> items) {
+		for (T item : items) add(item);
+	}
+	
+	/**
+	 * Adds the given item to the bucket for its current size.
+	 * @return True if the item was not already in the histogram
+	 */
+	public boolean add(T item) {
+		int size = item.size();
+		Set<T> bucket = buckets.get(size);
+		if (bucket == null) {
+			bucket = new LinkedHashSet<>();
+			buckets.put(size, bucket);
+		}
+		if (!bucket.add(item)) return false;
+		items++;
+		return true;
+	}
+	
+	/**
+	 * Removes the given item from the bucket for its current size.
+	 * @return True if the item was in the histogram
+	 */
+	public boolean remove(T item) {
+		return remove(item, item.size());
+	}
+	
+	/**
+	 * Removes the given item from the bucket for the given size, which should
+	 * be the size it had when it was added.
+	 * @return True if the item was in the histogram
+	 */
+	public boolean remove(T item, int size) {
+		Set<T> bucket = buckets.get(size);
+		if (bucket == null || !bucket.remove(item)) return false;
+		if (bucket.isEmpty()) buckets.remove(size);
+		items--;
+		return true;
+	}
+	
+	/** Returns the total number of items in this histogram */
+	public int size() {
+		return items;
+	}
+	
+	/** Returns the number of different sizes of items in this histogram */
+	public int distinctSizes() {
+		return buckets.size();
+	}
+	
+	/** Returns the number of items with the given size */
+	public int count(int size) {
+		Set<T> bucket = buckets.get(size);
+		return bucket == null ? 0 : bucket.size();
+	}
+	
+	/** Returns the items with the given size */
+	public Set<T> get(int size) {
+		Set<T> bucket = buckets.get(size);
+		if (bucket == null) return Collections.emptySet();
+		return Collections.unmodifiableSet(bucket);
+	}
+	
+	/** Iterates over all items in this histogram, bucket by bucket */
+	@Override
+	public Iterator<T> iterator() {
+		final Iterator<Set<T>> bucketIterator = buckets.values().iterator();
+		return new Iterator<T>() {
+			private Iterator<T> iterator = Collections.emptyIterator();
+			
+			@Override
+			public boolean hasNext() {
+				while (!iterator.hasNext() && bucketIterator.hasNext()) {
+					iterator = bucketIterator.next().iterator();
+				}
+				return iterator.hasNext();
+			}
+			
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return iterator.next();
+			}
+		};
+	}
+	
+	/** Returns the distinct sizes of the items, from largest to smallest */
+	public int[] sizes() {
+		int[] sizes = new int[buckets.size()];
+		int i = 0;
+		for (int size : buckets.keySet()) sizes[i++] = -size;
+		Arrays.sort(sizes);
+		for (i = 0; i < sizes.length; i++) sizes[i] = -sizes[i];
+		return sizes;
+	}
+}
@@ -0,0 +1,393 @@
+package org.khanacademy.infection;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only binary snapshot of a {@link Population}: its users, coaching edges,
+ * infections and conditions.
+ *
+ * Snapshots are written in one streaming pass with {@link Snapshot#write(Population, Path)},
+ * and opened with {@link Snapshot#open(Path)}, which maps the file into memory rather
+ * than reading it. The mapped snapshot can answer which infection a user is in and
+ * whether they have a condition right away, without building anything, and
+ * {@link Snapshot#restore()} rebuilds a live Population from it without having to
+ * find the infections again.
+ *
+ * The file is laid out as a header of counts, followed by:
+ * <ul>
+ * <li>The infection index of each user ID, or -1 for deleted users</li>
+ * <li>The edges from coaches to pupils, in compressed sparse row form: an offset for
+ * each user ID, and the pupil IDs</li>
+ * <li>A bitset marking which of those edges are tree edges of the {@link SpanningForest}</li>
+ * <li>An offset for each user ID into the UTF-8 bytes of the users' names</li>
+ * <li>A bitset marking which users' names are null, since they have no bytes, like
+ * empty names. Version 1 snapshots have no such bitset, and no null names.</li>
+ * <li>For each condition, its name, the number of users with it, and a bitset of them</li>
+ * </ul>
+ * All numbers are big-endian. Files are mapped with a single buffer, so they are
+ * limited to 2GB.
+ */
+public final class Snapshot {
+
+	private final static int MAGIC = 0x494E4653;
+	private final static int VERSION = 2;
+	private final static int HEADER_BYTES = 32;
+
+	private final ByteBuffer buffer;
+	private final int limit, users, components, edges, generation;
+	// The byte offsets of each section
+	private final int componentsAt, offsetsAt, targetsAt, treeAt, nameOffsetsAt, nullNamesAt, namesAt;
+	// The name, count and bitset offset of each condition
+	private final String[] conditionNames;
+	private final int[] conditionCounts;
+	private final int[] conditionsAt;
+	private final Map<String, Integer> conditionIDs = new HashMap<>();
+
+	private Snapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a population snapshot");
+		}
+		int version = buffer.getInt(4);
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported snapshot version: " + version);
+		}
+		limit = buffer.getInt(8);
+		users = buffer.getInt(12);
+		components = buffer.getInt(16);
+		edges = buffer.getInt(20);
+		int conditions = buffer.getInt(24);
+		generation = buffer.getInt(28);
+
+		componentsAt = HEADER_BYTES;
+		offsetsAt = componentsAt + 4 * limit;
+		targetsAt = offsetsAt + 4 * (limit + 1);
+		treeAt = targetsAt + 4 * edges;
+		nameOffsetsAt = treeAt + 8 * words(edges);
+		if (version >= 2) {
+			nullNamesAt = nameOffsetsAt + 4 * (limit + 1);
+			namesAt = nullNamesAt + 8 * words(limit);
+		} else {
+			nullNamesAt = -1;
+			namesAt = nameOffsetsAt + 4 * (limit + 1);
+		}
+
+		// Find each condition's bitset
+		conditionNames = new String[conditions];
+		conditionCounts = new int[conditions];
+		conditionsAt = new int[conditions];
+		int at = namesAt + buffer.getInt(nameOffsetsAt + 4 * limit);
+		for (int i = 0; i < conditions; i++) {
+			int length = buffer.getInt(at);
+			conditionNames[i] = string(at + 4, length);
+			conditionCounts[i] = buffer.getInt(at + 4 + length);
+			conditionsAt[i] = at + 8 + length;
+			conditionIDs.put(conditionNames[i], i);
+			at = conditionsAt[i] + 8 * words(limit);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the given population to the given file,
+	 * streaming it out a user at a time. The snapshot is written to a temporary
+	 * file, forced to disk, and then moved over the given file, so a crash along
+	 * the way leaves either the old snapshot or the new one, never part of one.
+	 */
+	public static void write(Population population, Path path) throws IOException {
+		write(population, path, 0);
+	}
+
+	/**
+	 * Writes a snapshot as in {@link Snapshot#write(Population, Path)}, marked with the
+	 * given generation, which {@link MutationLog} uses to tell which log goes with it.
+	 */
+	static void write(Population population, Path path, int generation) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Channels.newOutputStream(channel), 1 << 16));
+			write(population, out, generation);
+			out.flush();
+			channel.force(true);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(path.toAbsolutePath().getParent());
+	}
+	
+	/**
+	 * Forces the given directory's entries to disk, so that a file moved into it
+	 * stays moved after a crash. Not every platform can open a directory to do
+	 * this (Windows can't), and there it is skipped.
+	 */
+	static void syncDirectory(Path directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void write(Population population, DataOutputStream out, int generation) throws IOException {
+		Set<Infection> infections = population.getInfections();
+		CoachGraph graph = population.getGraph();
+		SpanningForest forest = population.getForest();
+		ConditionRegistry registry = population.getConditions();
+		int limit = population.userIDLimit();
+
+		int edges = 0;
+		for (int id = 0; id < limit; id++) edges += graph.pupilCount(id);
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(limit);
+		out.writeInt(population.countUsers());
+		out.writeInt(infections.size());
+		out.writeInt(edges);
+		out.writeInt(registry.size());
+		out.writeInt(generation);
+
+		// Infections are numbered in whatever order the registry has them
+		Map<Infection, Integer> indices = new HashMap<>(infections.size() * 2);
+		for (Infection infection : infections) indices.put(infection, indices.size());
+		for (int id = 0; id < limit; id++) {
+			User user = population.getUser(id);
+			out.writeInt(user == null ? -1 : indices.get(user.getInfection()));
+		}
+		indices = null;
+
+		int offset = 0;
+		out.writeInt(offset);
+		for (int id = 0; id < limit; id++) {
+			offset += graph.pupilCount(id);
+			out.writeInt(offset);
+		}
+		CoachGraph.Cursor cursor = new CoachGraph.Cursor();
+		for (int id = 0; id < limit; id++) {
+			graph.pupils(id, cursor);
+			for (int pupil = cursor.next(); pupil >= 0; pupil = cursor.next()) out.writeInt(pupil);
+		}
+
+		// If a pair of users coach each other, only the edge from the lower
+		// ID can be marked, since the forest doesn't care about direction
+		long word = 0;
+		int edge = 0;
+		for (int id = 0; id < limit; id++) {
+			graph.pupils(id, cursor);
+			for (int pupil = cursor.next(); pupil >= 0; pupil = cursor.next()) {
+				boolean tree = forest.isTreeEdge(id, pupil) && (id < pupil || !graph.hasEdge(pupil, id));
+				if (tree) word |= 1L << edge;
+				if ((++edge & 63) == 0) {
+					out.writeLong(word);
+					word = 0;
+				}
+			}
+		}
+		if ((edge & 63) != 0) out.writeLong(word);
+
+		offset = 0;
+		out.writeInt(offset);
+		for (int id = 0; id < limit; id++) {
+			offset += bytes(population.getUser(id)).length;
+			out.writeInt(offset);
+		}
+		word = 0;
+		for (int id = 0; id < limit; id++) {
+			User user = population.getUser(id);
+			if (user != null && user.getUserName() == null) word |= 1L << id;
+			if ((id & 63) == 63) {
+				out.writeLong(word);
+				word = 0;
+			}
+		}
+		if ((limit & 63) != 0) out.writeLong(word);
+		for (int id = 0; id < limit; id++) out.write(bytes(population.getUser(id)));
+
+		for (int condition = 0; condition < registry.size(); condition++) {
+			byte[] name = registry.name(condition).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(name.length);
+			out.write(name);
+			out.writeInt(registry.count(condition));
+			word = 0;
+			for (int id = 0; id < limit; id++) {
+				User user = population.getUser(id);
+				if (user != null && user.getInfection().hasCondition(user, condition)) word |= 1L << id;
+				if ((id & 63) == 63) {
+					out.writeLong(word);
+					word = 0;
+				}
+			}
+			if ((limit & 63) != 0) out.writeLong(word);
+		}
+	}
+
+	private static byte[] bytes(User user) {
+		if (user == null || user.getUserName() == null) return new byte[0];
+		return user.getUserName().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Maps the snapshot in the given file into memory. Nothing is read until
+	 * it is needed, so this takes about the same time for any size of snapshot.
+	 */
+	public static Snapshot open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("Snapshot too large to map: " + size);
+			return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/** Returns the generation of this snapshot, which is 0 unless it was written by a {@link MutationLog} */
+	public int generation() {
+		return generation;
+	}
+
+	/** Returns one more than the largest user ID in the snapshot */
+	public int userIDLimit() {
+		return limit;
+	}
+
+	/** Returns the number of users in the snapshot */
+	public int countUsers() {
+		return users;
+	}
+
+	/** Returns the number of infections in the snapshot */
+	public int countInfections() {
+		return components;
+	}
+
+	/** Returns the number of coaching edges in the snapshot */
+	public int countEdges() {
+		return edges;
+	}
+
+	/** Returns whether or not there was a user with the given ID */
+	public boolean exists(int userID) {
+		return infection(userID) >= 0;
+	}
+
+	/**
+	 * Returns the index of the infection the given user was in, from 0 to
+	 * {@link Snapshot#countInfections()}, or -1 if there was no such user.
+	 * Users are in the same infection if and only if they have the same index.
+	 */
+	public int infection(int userID) {
+		if (userID < 0 || userID >= limit) return -1;
+		return buffer.getInt(componentsAt + 4 * userID);
+	}
+
+	/** Returns the name of the given user, or null if there was no such user or their name was null */
+	public String userName(int userID) {
+		if (!exists(userID)) return null;
+		if (nullNamesAt >= 0 && (buffer.getLong(nullNamesAt + 8 * (userID >>> 6)) & (1L << userID)) != 0) {
+			return null;
+		}
+		int start = buffer.getInt(nameOffsetsAt + 4 * userID);
+		int end = buffer.getInt(nameOffsetsAt + 4 * (userID + 1));
+		return string(namesAt + start, end - start);
+	}
+
+	/** Returns the IDs of the users the given user coached */
+	public int[] pupils(int userID) {
+		if (!exists(userID)) return new int[0];
+		int start = edgeStart(userID), end = edgeStart(userID + 1);
+		int[] pupils = new int[end - start];
+		for (int i = start; i < end; i++) pupils[i - start] = pupil(i);
+		return pupils;
+	}
+
+	/** Returns whether or not the given user had the given condition */
+	public boolean hasCondition(int userID, String condition) {
+		Integer id = conditionIDs.get(condition);
+		if (id == null || !exists(userID)) return false;
+		long word = buffer.getLong(conditionsAt[id] + 8 * (userID >>> 6));
+		return (word & (1L << userID)) != 0;
+	}
+
+	/** Returns the number of users with the given condition */
+	public int countUsersWithCondition(String condition) {
+		Integer id = conditionIDs.get(condition);
+		return id == null ? 0 : conditionCounts[id];
+	}
+
+	/** Returns the conditions in the snapshot */
+	public String[] getConditions() {
+		return conditionNames.clone();
+	}
+
+	/**
+	 * Returns a new population with the same users, edges, infections and conditions
+	 * as this snapshot. The infections and spanning forest are read from the snapshot,
+	 * rather than found again, so this takes time proportional to the size of the file.
+	 */
+	public Population restore() {
+		Population population = new Population();
+		population.restore(this);
+		return population;
+	}
+
+	// The index of the given user's first edge
+	int edgeStart(int userID) {
+		return buffer.getInt(offsetsAt + 4 * userID);
+	}
+
+	// The pupil of the edge with the given index
+	int pupil(int edge) {
+		return buffer.getInt(targetsAt + 4 * edge);
+	}
+
+	// Whether or not the edge with the given index is a tree edge
+	boolean isTreeEdge(int edge) {
+		return (buffer.getLong(treeAt + 8 * (edge >>> 6)) & (1L << edge)) != 0;
+	}
+
+	int conditionCount() {
+		return conditionNames.length;
+	}
+
+	String conditionName(int condition) {
+		return conditionNames[condition];
+	}
+
+	/**
+	 * Returns the word of the given condition's bitset holding
+	 * user IDs from 64 * index to 64 * index + 63.
+	 */
+	long conditionWord(int condition, int index) {
+		return buffer.getLong(conditionsAt[condition] + 8 * index);
+	}
+
+	private String string(int at, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) bytes[i] = buffer.get(at + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+}
@@ -0,0 +1,544 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+
+/**
+ * A spanning forest of a {@link CoachGraph}, which keeps track of which edges
+ * are needed to keep each connected component connected, and which other edges
+ * could replace them, so that removing an edge costs O(log^2 n) amortized time.
+ *
+ * This is the leveled structure of Holm, de Lichtenberg and Thorup. Every edge has
+ * a level, starting at 0, which only ever goes up. For each level i, the tree edges at
+ * level i or above form a forest F_i, with F_0 spanning the whole graph, and every tree
+ * of F_i has at most n / 2^i users. Each F_i is stored as the Euler tours of its trees,
+ * kept in treaps, so trees can be linked, cut, rerooted and compared in O(log n).
+ *
+ * Removing an edge that isn't a tree edge only takes it off its users' lists. When a
+ * tree edge at level l is removed, we look for a replacement at levels l down to 0. At
+ * each level, the smaller of the two halves it left has at most half as many users, so
+ * its tree edges move up a level, and then its non-tree edges at that level are tried
+ * in turn. The first that leaves the smaller half becomes a tree edge, and the rest stay
+ * inside it, so they move up a level too. An edge can only move up log n times, which
+ * pays for all of the searching. If there is no replacement even at level 0, the smaller
+ * half has split off, and listing its users is what it costs to split it off.
+ *
+ * Each edge is stored once, whichever way round it goes, so it costs a few dozen bytes
+ * rather than the 8 it costs in the graph, plus two tour nodes for each level a tree
+ * edge has reached, and a tour node for each user at each level it has tree edges.
+ */
+final class SpanningForest {
+
+	private static final int NONE = -1;
+
+	// Flags for a user's tour node at some level, if it has tree or non-tree edges at that level
+	private static final byte TREE = 1, NON_TREE = 2;
+
+	// Edges, by ID, each with two ends: end 2 * edge is the user with the smaller ID,
+	// and end 2 * edge + 1 the other one. Each end is in a doubly linked list of its
+	// user's edges of the same kind and level, whose first ends are in lists.
+	private int[] ends = new int[32], nextEnd = new int[32], previousEnd = new int[32];
+	private byte[] levels = new byte[16];
+	private boolean[] tree = new boolean[16];
+	private int edgeLimit, freeEdge = NONE, treeSize;
+	private final LongIntMap edgeIDs = new LongIntMap();
+	private final LongIntMap lists = new LongIntMap();
+
+	// Euler tour nodes, in treaps ordered by their place in the tour. Users have a
+	// node at each level where they have tree edges, and tree edges have a node for
+	// each direction at each level up to their own.
+	private int[] left = new int[64], right = new int[64], parent = new int[64];
+	private int[] priority = new int[64], count = new int[64], weight = new int[64], user = new int[64];
+	private byte[] flags = new byte[64], below = new byte[64];
+	private int nodeLimit, freeNode = NONE, seed = 0x2545F491;
+	private final LongIntMap vertices = new LongIntMap();
+	private final LongIntMap arcs = new LongIntMap();
+
+	// Scratch space for the results of split, and for listing the users in a tree
+	private int splitLeft, splitRight;
+	private int[] found = new int[64], stack = new int[64];
+
+	/** Returns the number of tree edges */
+	int size() {
+		return treeSize;
+	}
+
+	/** Returns whether or not the edge between the given users is a tree edge */
+	boolean isTreeEdge(int a, int b) {
+		int edge = edgeIDs.get(key(a, b));
+		return edge != NONE && tree[edge];
+	}
+
+	/**
+	 * Records an edge between the given users, in either direction, if it isn't
+	 * already recorded. If it joins two trees, it becomes a tree edge, and otherwise
+	 * it's kept as a possible replacement for a tree edge. This is O(log n).
+	 * @return True if it became a tree edge
+	 */
+	boolean add(int a, int b) {
+		long key = key(a, b);
+		if (edgeIDs.get(key) != NONE) return false;
+		boolean joins = !connected(a, b);
+		int edge = newEdge(a, b, joins);
+		edgeIDs.put(key, edge);
+		if (joins) {
+			treeSize++;
+			join(edge, 0);
+		}
+		push(edge, 0);
+		return joins;
+	}
+
+	/**
+	 * Forgets the edge between the given users, without looking for a replacement
+	 * if it was a tree edge, so its component may no longer be spanned by one tree
+	 * until all of its edges are cut and added again.
+	 * @return True if it was a tree edge
+	 */
+	boolean cut(int a, int b) {
+		int edge = edgeIDs.remove(key(a, b));
+		if (edge == NONE) return false;
+		boolean wasTree = tree[edge];
+		int level = remove(edge);
+		for (int i = 0; i <= level; i++) {
+			release(i, a);
+			release(i, b);
+		}
+		return wasTree;
+	}
+
+	/**
+	 * Records that the last edge between the given users has been removed from
+	 * the graph, and finds out if that split their component.
+	 *
+	 * If it wasn't a tree edge, this is O(log n). Otherwise it's O(log^2 n) amortized
+	 * over all of the edges added, plus the number of users that split off.
+	 * @return The IDs of the users that split off from the component (the smaller side),
+	 * or null if it is still connected
+	 */
+	int[] unlink(int a, int b) {
+		int edge = edgeIDs.remove(key(a, b));
+		if (edge == NONE) return null;
+		boolean wasTree = tree[edge];
+		int level = remove(edge);
+		if (!wasTree) return null;
+
+		int[] split = null;
+		for (int i = level; i >= 0; i--) {
+			int smaller = replace(a, b, i);
+			if (smaller == NONE) break;
+			if (i == 0) {
+				// collect may replace found, so it has to run before we copy it
+				int users = collect(smaller, (byte) 0);
+				split = Arrays.copyOf(found, users);
+			}
+		}
+		for (int i = 0; i <= level; i++) {
+			release(i, a);
+			release(i, b);
+		}
+		return split;
+	}
+
+	// Takes an edge off its users' lists and out of every forest it's in,
+	// and frees it, returning the level it was at
+	private int remove(int edge) {
+		int level = levels[edge];
+		pull(edge, level);
+		if (tree[edge]) {
+			treeSize--;
+			for (int i = 0; i <= level; i++) sever(edge, i);
+		}
+		nextEnd[2 * edge] = freeEdge;
+		freeEdge = edge;
+		return level;
+	}
+
+	// Looks for a replacement at the given level for a tree edge between a and b, which
+	// has just been cut from every forest it was in. Returns NONE if one was found, and
+	// otherwise the root of the smaller of the two trees left behind at this level.
+	private int replace(int a, int b, int level) {
+		int rootA = root(vertices.get(vertexKey(level, a))), rootB = root(vertices.get(vertexKey(level, b)));
+		int smaller = weight[rootA] <= weight[rootB] ? rootA : rootB;
+
+		// The smaller tree has at most half the users of the one it came from,
+		// so it can move up a level, and then all of its edges at this level can too
+		for (int i = 0, users = collect(smaller, TREE); i < users; i++) {
+			for (int end = lists.get(listKey(level, true, found[i])), next; end != NONE; end = next) {
+				next = nextEnd[end];
+				int edge = end >> 1;
+				pull(edge, level);
+				levels[edge]++;
+				join(edge, level + 1);
+				push(edge, level + 1);
+			}
+		}
+
+		// Any non-tree edge that leaves the smaller tree reconnects it, and the
+		// rest are inside it, so they move up with it
+		for (int i = 0, users = collect(smaller, NON_TREE); i < users; i++) {
+			for (int end = lists.get(listKey(level, false, found[i])), next; end != NONE; end = next) {
+				next = nextEnd[end];
+				int edge = end >> 1;
+				pull(edge, level);
+				if (root(vertices.get(vertexKey(level, ends[end ^ 1]))) != smaller) {
+					tree[edge] = true;
+					treeSize++;
+					for (int j = 0; j <= level; j++) join(edge, j);
+					push(edge, level);
+					return NONE;
+				}
+				levels[edge]++;
+				push(edge, level + 1);
+			}
+		}
+		return smaller;
+	}
+
+	private boolean connected(int a, int b) {
+		int nodeA = vertices.get(vertexKey(0, a)), nodeB = vertices.get(vertexKey(0, b));
+		return nodeA != NONE && nodeB != NONE && root(nodeA) == root(nodeB);
+	}
+
+	private int newEdge(int a, int b, boolean isTree) {
+		int edge = freeEdge;
+		if (edge != NONE) {
+			freeEdge = nextEnd[2 * edge];
+		} else {
+			edge = edgeLimit++;
+			if (edge == levels.length) {
+				int length = edge * 2;
+				ends = Arrays.copyOf(ends, length * 2);
+				nextEnd = Arrays.copyOf(nextEnd, length * 2);
+				previousEnd = Arrays.copyOf(previousEnd, length * 2);
+				levels = Arrays.copyOf(levels, length);
+				tree = Arrays.copyOf(tree, length);
+			}
+		}
+		ends[2 * edge] = Math.min(a, b);
+		ends[2 * edge + 1] = Math.max(a, b);
+		levels[edge] = 0;
+		tree[edge] = isTree;
+		return edge;
+	}
+
+	// Adds both ends of an edge to their users' lists at the given level
+	private void push(int edge, int level) {
+		for (int end = 2 * edge; end <= 2 * edge + 1; end++) {
+			long key = listKey(level, tree[edge], ends[end]);
+			int first = lists.get(key);
+			nextEnd[end] = first;
+			previousEnd[end] = NONE;
+			if (first != NONE) previousEnd[first] = end;
+			else mark(level, ends[end], tree[edge] ? TREE : NON_TREE, true);
+			lists.put(key, end);
+		}
+	}
+
+	// Takes both ends of an edge off their users' lists at the given level
+	private void pull(int edge, int level) {
+		for (int end = 2 * edge; end <= 2 * edge + 1; end++) {
+			int next = nextEnd[end], previous = previousEnd[end];
+			if (next != NONE) previousEnd[next] = previous;
+			if (previous != NONE) {
+				nextEnd[previous] = next;
+			} else if (next != NONE) {
+				lists.put(listKey(level, tree[edge], ends[end]), next);
+			} else {
+				lists.remove(listKey(level, tree[edge], ends[end]));
+				mark(level, ends[end], tree[edge] ? TREE : NON_TREE, false);
+			}
+		}
+	}
+
+	// Sets or clears a flag on a user's tour node at the given level
+	private void mark(int level, int id, byte flag, boolean set) {
+		int node = vertices.get(vertexKey(level, id));
+		flags[node] = (byte) (set ? flags[node] | flag : flags[node] & ~flag);
+		for (; node != NONE; node = parent[node]) update(node);
+	}
+
+	// Links the trees of an edge's users at the given level with it
+	private void join(int edge, int level) {
+		int a = reroot(vertex(level, ends[2 * edge])), b = reroot(vertex(level, ends[2 * edge + 1]));
+		int forward = newNode(NONE), backward = newNode(NONE);
+		arcs.put(arcKey(level, edge, 0), forward);
+		arcs.put(arcKey(level, edge, 1), backward);
+		merge(merge(merge(a, forward), b), backward);
+	}
+
+	// Cuts an edge out of its tree at the given level, leaving two trees
+	private void sever(int edge, int level) {
+		int first = arcs.remove(arcKey(level, edge, 0)), second = arcs.remove(arcKey(level, edge, 1));
+		int i = position(first), j = position(second);
+		if (i > j) {
+			int temp = i;
+			i = j;
+			j = temp;
+		}
+		// The tour is A, first, B, second, C: B is one tree, and A then C the other
+		split(root(first), i);
+		int before = splitLeft;
+		split(splitRight, 1);
+		freeNode(splitLeft);
+		split(splitRight, j - i - 1);
+		split(splitRight, 1);
+		freeNode(splitLeft);
+		merge(before, splitRight);
+	}
+
+	// Frees a user's tour node at the given level, if it's on its own and has no edges
+	private void release(int level, int id) {
+		long key = vertexKey(level, id);
+		int node = vertices.get(key);
+		if (node != NONE && parent[node] == NONE && count[node] == 1 && flags[node] == 0) {
+			vertices.remove(key);
+			freeNode(node);
+		}
+	}
+
+	// Returns a user's tour node at the given level, creating it if needed
+	private int vertex(int level, int id) {
+		long key = vertexKey(level, id);
+		int node = vertices.get(key);
+		if (node == NONE) {
+			node = newNode(id);
+			vertices.put(key, node);
+		}
+		return node;
+	}
+
+	// Lists the users in a tree whose nodes have the given flag (or all of them,
+	// for no flag) in found, and returns how many there are
+	private int collect(int root, byte flag) {
+		int size = 0, depth = 0;
+		stack[depth++] = root;
+		while (depth > 0) {
+			int node = stack[--depth];
+			if (user[node] != NONE && (flag == 0 || (flags[node] & flag) != 0)) {
+				if (size == found.length) found = Arrays.copyOf(found, size * 2);
+				found[size++] = user[node];
+			}
+			if (depth + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+			if (includes(left[node], flag)) stack[depth++] = left[node];
+			if (includes(right[node], flag)) stack[depth++] = right[node];
+		}
+		return size;
+	}
+
+	// Whether or not a subtree has any users with the given flag (or any users at all)
+	private boolean includes(int node, byte flag) {
+		return node != NONE && (flag == 0 ? weight[node] > 0 : (below[node] & flag) != 0);
+	}
+
+	// Rotates a node's tour to start at it, returning the new root
+	private int reroot(int node) {
+		split(root(node), position(node));
+		int before = splitLeft;
+		return merge(splitRight, before);
+	}
+
+	private int root(int node) {
+		while (parent[node] != NONE) node = parent[node];
+		return node;
+	}
+
+	// Returns how many nodes come before this one in its tour
+	private int position(int node) {
+		int position = count(left[node]);
+		for (; parent[node] != NONE; node = parent[node]) {
+			if (right[parent[node]] == node) position += count(left[parent[node]]) + 1;
+		}
+		return position;
+	}
+
+	// Concatenates two tours, returning the root of the result
+	private int merge(int a, int b) {
+		if (a == NONE || b == NONE) {
+			int root = a == NONE ? b : a;
+			if (root != NONE) parent[root] = NONE;
+			return root;
+		}
+		if (priority[a] > priority[b]) {
+			int child = merge(right[a], b);
+			right[a] = child;
+			parent[child] = a;
+			update(a);
+			parent[a] = NONE;
+			return a;
+		}
+		int child = merge(a, left[b]);
+		left[b] = child;
+		parent[child] = b;
+		update(b);
+		parent[b] = NONE;
+		return b;
+	}
+
+	// Splits a tour into its first k nodes and the rest, in splitLeft and splitRight
+	private void split(int node, int k) {
+		if (node == NONE) {
+			splitLeft = splitRight = NONE;
+			return;
+		}
+		if (count(left[node]) >= k) {
+			split(left[node], k);
+			left[node] = splitRight;
+			if (splitRight != NONE) parent[splitRight] = node;
+			splitRight = node;
+		} else {
+			split(right[node], k - count(left[node]) - 1);
+			right[node] = splitLeft;
+			if (splitLeft != NONE) parent[splitLeft] = node;
+			splitLeft = node;
+		}
+		update(node);
+		if (splitLeft != NONE) parent[splitLeft] = NONE;
+		if (splitRight != NONE) parent[splitRight] = NONE;
+	}
+
+	private void update(int node) {
+		int l = left[node], r = right[node];
+		count[node] = 1 + count(l) + count(r);
+		weight[node] = (user[node] != NONE ? 1 : 0) + (l != NONE ? weight[l] : 0) + (r != NONE ? weight[r] : 0);
+		below[node] = (byte) (flags[node] | (l != NONE ? below[l] : 0) | (r != NONE ? below[r] : 0));
+	}
+
+	private int count(int node) {
+		return node == NONE ? 0 : count[node];
+	}
+
+	// Returns a new node on its own, for a user or (given NONE) an edge
+	private int newNode(int id) {
+		int node = freeNode;
+		if (node != NONE) {
+			freeNode = left[node];
+		} else {
+			node = nodeLimit++;
+			if (node == left.length) {
+				int length = node * 2;
+				left = Arrays.copyOf(left, length);
+				right = Arrays.copyOf(right, length);
+				parent = Arrays.copyOf(parent, length);
+				priority = Arrays.copyOf(priority, length);
+				count = Arrays.copyOf(count, length);
+				weight = Arrays.copyOf(weight, length);
+				user = Arrays.copyOf(user, length);
+				flags = Arrays.copyOf(flags, length);
+				below = Arrays.copyOf(below, length);
+			}
+		}
+		// Xorshift, which is plenty random enough to balance a treap
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		left[node] = right[node] = parent[node] = NONE;
+		priority[node] = seed;
+		user[node] = id;
+		flags[node] = 0;
+		update(node);
+		return node;
+	}
+
+	private void freeNode(int node) {
+		left[node] = freeNode;
+		freeNode = node;
+	}
+
+	// The same key for either direction of an edge
+	private static long key(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	private static long listKey(int level, boolean tree, int id) {
+		return ((long) (level * 2 + (tree ? 0 : 1)) << 32) | id;
+	}
+
+	private static long vertexKey(int level, int id) {
+		return ((long) level << 32) | id;
+	}
+
+	private static long arcKey(int level, int edge, int direction) {
+		return ((long) level << 40) | ((long) edge << 1) | direction;
+	}
+
+	/**
+	 * An open-addressing hash map from non-negative longs to ints, where
+	 * EMPTY marks unused slots.
+	 */
+	private static final class LongIntMap {
+		private static final long EMPTY = -1;
+
+		private long[] keys = newTable(16);
+		private int[] values = new int[16];
+		private int size;
+
+		/** Returns the value for the given key, or NONE */
+		int get(long key) {
+			int slot = slot(keys, key);
+			return keys[slot] == EMPTY ? NONE : values[slot];
+		}
+
+		void put(long key, int value) {
+			int slot = slot(keys, key);
+			values[slot] = value;
+			if (keys[slot] == EMPTY) {
+				keys[slot] = key;
+				if (++size * 2 > keys.length) rehash(keys.length * 2);
+			}
+		}
+
+		/** Removes the given key, returning its value, or NONE */
+		int remove(long key) {
+			int mask = keys.length - 1;
+			int hole = slot(keys, key);
+			if (keys[hole] != key) return NONE;
+			int value = values[hole];
+			size--;
+
+			// Shift back any entries that probed past this slot
+			for (int i = (hole + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+				int home = hash(keys[i]) & mask;
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					keys[hole] = keys[i];
+					values[hole] = values[i];
+					hole = i;
+				}
+			}
+			keys[hole] = EMPTY;
+			return value;
+		}
+
+		private void rehash(int length) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = newTable(length);
+			values = new int[length];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					int slot = slot(keys, oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+
+		// Finds the slot containing key, or the empty slot where it belongs
+		private static int slot(long[] keys, long key) {
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+			return i;
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		private static long[] newTable(int length) {
+			long[] table = new long[length];
+			Arrays.fill(table, EMPTY);
+			return table;
+		}
+	}
+}
@@ -2,15 +2,29 @@ package org.khanacademy.infection;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Utility class for solving and approximating the Subset Sum problem
  */
 public class SubsetSum {
 
+	/**
+	 * The default number of bytes the exact solver may use for its table: 256MB.
+	 * See {@link Population#setMemoryBudget(long)}.
+	 */
+	public final static long DEFAULT_MEMORY_BUDGET = 256L << 20;
+	
+	/**
+	 * The default number of columns below which the exact solver computes rows
+	 * sequentially, even given a pool: 2^20. See {@link Population#setParallelCutoff(int)}.
+	 */
+	public final static int DEFAULT_PARALLEL_CUTOFF = 1 << 20;
+
 	public final static Comparator<ICountable> COUNTABLE_COMPARATOR = 
 			new Comparator<ICountable>() {
 		@Override
@@ -29,19 +43,28 @@ public class SubsetSum {
 	 * @return The subet
 	 */
 	public static <T extends ICountable> List<T> subsetSumApproximate(Collection<T> set, int targetSum) {
+		return subsetSumApproximate(new SizeHistogram<>(set), targetSum);
+	}
+	
+	/**
+	 * Runs the {@link SubsetSum#subsetSumApproximate(Collection, int)} algorithm on the
+	 * items in the given histogram. This takes time proportional to the number of
+	 * distinct sizes of items, plus the number of items returned.
+	 */
+	public static <T extends ICountable> List<T> subsetSumApproximate(SizeHistogram<T> histogram, int targetSum) {
 		List<T> subset = new ArrayList<>();
 		
-		// Sort from larget to smallest
-		ArrayList<T> list = new ArrayList<>(set);
-		Collections.sort(list, COUNTABLE_COMPARATOR);
-		
-		// Include all items that fit in our remaining space
+		// Go from largest to smallest
 		int sum = 0;
-		for (T t : list) {
-			int size = t.size();
-			if (sum + size <= targetSum) {
+		for (int size : histogram.sizes()) {
+			// Include all items that fit in our remaining space
+			int count = histogram.count(size);
+			if (size > 0) count = Math.max(0, Math.min(count, (targetSum - sum) / size));
+			for (T t : histogram.get(size)) {
+				if (count <= 0 || sum + size > targetSum) break;
 				subset.add(t);
 				sum += size;
+				count--;
 			}
 		}
 		
@@ -62,24 +85,156 @@ public class SubsetSum {
 	 * given {@link ICountable} items and returns the subset calculated, or null upon failure.
 	 */
 	public static <T extends ICountable> List<T> subsetSum(Collection<T> set, int n, int threshold) {
+		if (set.size() == 0) return new ArrayList<>();
+		return subsetSum(new SizeHistogram<>(set), n, threshold);
+	}
+	
+	/**
+	 * Runs the {@link SubsetSum#subsetSum(int[], int, int)} algorithm on the items
+	 * in the given histogram, and returns the subset calculated, or null upon failure.
+	 * The items of each size are split into about log(count) pieces (see {@link Pieces}), 
+	 * so this takes time proportional to the number of distinct sizes, not items.
+	 */
+	public static <T extends ICountable> List<T> subsetSum(SizeHistogram<T> histogram, int n, int threshold) {
+		return subsetSum(histogram, n, threshold, DEFAULT_MEMORY_BUDGET, null, DEFAULT_PARALLEL_CUTOFF);
+	}
+	
+	// The same, with a population's settings for the table, as in
+	// subsetSum(int[], int, int, long, ForkJoinPool, int)
+	static <T extends ICountable> List<T> subsetSum(SizeHistogram<T> histogram, int n, int threshold,
+			long memoryBudget, ForkJoinPool pool, int parallelCutoff) {
+		Pieces<T> pieces = new Pieces<>(histogram);
+		int[] subsetSum = subsetSum(pieces.items, n, threshold, memoryBudget, pool, parallelCutoff);
+		if (subsetSum == null) return null;
+		return pieces.toSubset(subsetSum);
+	}
+	
+	/**
+	 * The result of {@link SubsetSum#subsetSumApproximate(SizeHistogram, int, int, double)}:
+	 * a subset, its sum, and how far that sum is from the target.
+	 */
+	public static class Approximation<T> {
+		/** The chosen items */
+		public final List<T> subset;
+		/** The total size of the chosen items */
+		public final int sum;
+		/** The sum which was asked for */
+		public final int target;
+		/** The guaranteed bound on relative error for this approximation */
+		public final double epsilon;
 		
-		int length = set.size(); 
-				
-		ArrayList<T> list = new ArrayList<>(set);
-		if (set.size() == 0) return list;
-		
-		int[] sizes = new int[length];
-		for (int i = 0; i < sizes.length; i++) {
-			sizes[i] = list.get(i).size();
+		Approximation(List<T> subset, int sum, int target, double epsilon) {
+			this.subset = subset;
+			this.sum = sum;
+			this.target = target;
+			this.epsilon = epsilon;
 		}
 		
-		int[] subsetSum = subsetSum(sizes, n, threshold);
-		if (subsetSum == null) return null;
+		/** Returns the difference between the sum and the target */
+		public int error() {
+			return Math.abs(sum - target);
+		}
+	}
+	
+	/**
+	 * Approximates the {@link SubsetSum#subsetSum(SizeHistogram, int, int)} algorithm for positive
+	 * items, using a fully polynomial-time approximation scheme. This finds a subset with a sum
+	 * m <= n + threshold, where m is at least (1 - epsilon) times the largest such sum possible.
+	 * Unlike the exact solver, this takes time and memory polynomial in the number of items
+	 * and 1/epsilon, but only logarithmic in n, so it is useful when n is too large for the
+	 * exact solver's table. Items without a positive size are never chosen.
+	 * @param histogram The items from which to draw the subset
+	 * @param n The target sum of the subset
+	 * @param threshold A margin of error for n
+	 * @param epsilon The largest acceptable relative error, between 0 and 1
+	 * @return The subset and its sum, which may not be within threshold of n
+	 */
+	public static <T extends ICountable> Approximation<T> subsetSumApproximate(
+			SizeHistogram<T> histogram, int n, int threshold, double epsilon) {
+		Pieces<T> pieces = new Pieces<>(histogram);
+		int[] indices = TrimmedSums.solve(pieces.items, n + threshold, epsilon);
+		int sum = 0;
+		for (int i : indices) sum += pieces.items[i];
+		return new Approximation<>(pieces.toSubset(indices), sum, n, epsilon);
+	}
+	
+	// The number of columns the exact solver would use for the given items
+	static int tableWidth(int[] items, int n, int threshold) {
+		int sumPositive = 0;
+		int sumNegative = 0;
+		for (int v : items) {
+			if (v > 0) sumPositive += v;
+			else sumNegative += v;
+		}
+		if (sumPositive > n + threshold) sumPositive = n;
+		return Math.max(0, sumPositive - sumNegative + 1);
+	}
+	
+	/**
+	 * The items of a {@link SizeHistogram}, split into pieces for the solvers.
+	 * 
+	 * Rather than using each item, the c items of size s are split into pieces
+	 * of 1, 2, 4, ... items (plus a remainder), each of which is one item for the
+	 * solver. Any number of items from 0 to c can be made from these pieces, so the
+	 * solver only needs about log(c) items for each distinct size.
+	 */
+	static class Pieces<T extends ICountable> {
+		private final SizeHistogram<T> histogram;
+		private final int[] sizes;
+		private final int[] pieceSizes;
+		private final int[] pieceCounts;
+		/** The total size of each piece */
+		final int[] items;
 		
-		List<T> subset = new ArrayList<>();
-		for (int i : subsetSum) subset.add(list.get(i));
+		Pieces(SizeHistogram<T> histogram) {
+			this.histogram = histogram;
+			sizes = histogram.sizes();
+			
+			int length = 0;
+			for (int size : sizes) {
+				// Empty items never change the sum
+				if (size != 0) length += 32 - Integer.numberOfLeadingZeros(histogram.count(size));
+			}
+			
+			// Split each size's count into pieces
+			pieceSizes = new int[length];
+			pieceCounts = new int[length];
+			items = new int[length];
+			int i = 0;
+			for (int size : sizes) {
+				if (size == 0) continue;
+				int remaining = histogram.count(size);
+				for (int piece = 1; remaining > 0; piece *= 2) {
+					piece = Math.min(piece, remaining);
+					pieceSizes[i] = size;
+					pieceCounts[i] = piece;
+					items[i++] = size * piece;
+					remaining -= piece;
+				}
+			}
+		}
 		
-		return subset;
+		/** Returns the items which make up the pieces at the given indices */
+		List<T> toSubset(int[] indices) {
+			// Add up how many items of each size we chose...
+			Map<Integer, Integer> chosen = new HashMap<>();
+			for (int i : indices) {
+				Integer count = chosen.get(pieceSizes[i]);
+				chosen.put(pieceSizes[i], (count == null ? 0 : count) + pieceCounts[i]);
+			}
+			
+			// ...and take that many of them
+			List<T> subset = new ArrayList<>();
+			for (int size : sizes) {
+				Integer count = chosen.get(size);
+				if (count == null) continue;
+				for (T t : histogram.get(size)) {
+					if (count-- <= 0) break;
+					subset.add(t);
+				}
+			}
+			return subset;
+		}
 	}
 	
 	/**
@@ -90,7 +245,8 @@ public class SubsetSum {
 	 * 
 	 * This algorithm uses a dynamic programming solution which runs in
 	 * polynomial time in the <i>range</i> of items (i.e. max(items) - min(items)), 
-	 * but not polynomial in the number of items.
+	 * but not polynomial in the number of items. The table of solutions is stored
+	 * as a bitset (see {@link SumTable}), so it is filled 64 sums at a time.
 	 * 
 	 * Adapted from https://en.wikipedia.org/wiki/Subset_sum_problem#Pseudo-polynomial_time_dynamic_programming_solution
 	 * 
@@ -100,6 +256,20 @@ public class SubsetSum {
 	 * @return The <b>indices</b> of the subset
 	 */
 	public static int[] subsetSum(int[] items, int n, int threshold) {
+		return subsetSum(items, n, threshold, DEFAULT_MEMORY_BUDGET, null, DEFAULT_PARALLEL_CUTOFF);
+	}
+	
+	/**
+	 * The same as {@link SubsetSum#subsetSum(int[], int, int)}, but with the given
+	 * settings for the table, as in {@link Population#setMemoryBudget(long)},
+	 * {@link Population#setParallelPool(ForkJoinPool)} and {@link Population#setParallelCutoff(int)}.
+	 * The results are exactly the same whatever the settings.
+	 * @param memoryBudget The number of bytes the table may use before it keeps only checkpoints
+	 * @param pool The pool with which to compute wide rows, or null to compute them sequentially
+	 * @param parallelCutoff The number of columns below which rows are computed sequentially
+	 */
+	public static int[] subsetSum(int[] items, int n, int threshold, 
+			long memoryBudget, ForkJoinPool pool, int parallelCutoff) {
 		
 		int length = items.length;
 		if (length == 0) {
@@ -128,35 +298,34 @@ public class SubsetSum {
 		int width = sumPositive - sumNegative + 1;
 		if (width <= 0) return null;
 		
-		// Make the array and initialize it
-		boolean[][] sumArray = new boolean[length][width]; 
-		for (int j = 0; j < width; j++) {
-			// For x == 0, a(x,y) is true if y == items[0]
-			// Here y = j + sumNegative, since j is a 0-based array index
-			sumArray[0][j] = items[0] == j + sumNegative;
-		}
+		// Make the table of reachable sums. Each row is packed into 64-bit words,
+		// so we use 1/8 the memory of a boolean table and fill 64 cells at a time.
+		// If it's still too big, the table will only keep checkpoint rows,
+		// and if it's wide enough, rows may be computed in parallel.
+		SumTable sumArray = SumTable.build(items, sumNegative, width, memoryBudget, 
+				pool, parallelCutoff);
 		
-		for (int i = 1; i < length; i++) {
-			for (int j = 0; j < width; j++) {
-				// Again, a(x,y) corresponds to sumArray[i, j + sumNegative]
-				// There are three ways a(x,y) can be true:
-				if (sumArray[i-1][j] || items[i] == j + sumNegative) {
-					// If a(x-1,y) is true, or items[x] == y
-					sumArray[i][j] = true;
-				} else {
-					// Or if a(x-1, y-items[x]) is true
-					int x = j - items[i];
-					if (x >= 0 && x < width && sumArray[i-1][x]) {
-						sumArray[i][j] = true;
-					}
-				}
-			}
-		}
+		return traceback(sumArray, items, n, threshold);
+	}
+	
+	/**
+	 * Finds the indices of a subset of the given items which sum to n, or as close
+	 * to n as possible while remaining within threshold of n, using a table of their
+	 * reachable sums, or returns null if this is not possible. The table only needs
+	 * to be built once for any number of calls, as long as it covers the sums
+	 * from n - threshold to n + threshold.
+	 */
+	static int[] traceback(SumTable table, int[] items, int n, int threshold) {
+		int length = items.length;
+		int sumNegative = table.offset;
+		int width = table.width;
+		// Each traceback reads through its own reader, so they can share a table
+		SumTable.Reader sumArray = table.reader();
 		
 		// Optionally print the array for debugging
 //		for (int i = 0; i < width; i++) {
 //			for (int j = 0; j < length; j++) {
-//				System.out.print(sumArray[j][i] ? "1 " : "0 ");
+//				System.out.print(sumArray.get(j, i) ? "1 " : "0 ");
 //			}
 //			System.out.println();
 //		}
@@ -169,12 +338,12 @@ public class SubsetSum {
 		boolean found = false;
 		for (int i = 0; i <= threshold; i++) {
 			c = n - sumNegative + i;
-			if (c < width && sumArray[r][c]) {
+			if (c < width && sumArray.get(r, c)) {
 				found = true;
 				break;
 			}
 			c = n - sumNegative - i;
-			if (c >= 0 && c < width && sumArray[r][c]) {
+			if (c >= 0 && c < width && sumArray.get(r, c)) {
 				found = true;
 				break;
 			}
@@ -184,8 +353,8 @@ public class SubsetSum {
 		// Then work back through the array to find the subset
 		// that created that sum
 		List<Integer> indices = new ArrayList<>();
-		while (r >= 0 && c < width && sumArray[r][c]) {
-			while (r > 0 && sumArray[r-1][c]) r--;
+		while (r >= 0 && c < width && sumArray.get(r, c)) {
+			while (r > 0 && sumArray.get(r-1, c)) r--;
 			if (items[r] == 0) break;
 			indices.add(r);
 			c -= items[r];
@@ -0,0 +1,356 @@
+package org.khanacademy.infection;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A table of reachable sums for the {@link SubsetSum} dynamic programming
+ * solution, where row i, column j is true if some subset of the first i+1 items
+ * sums to (j + offset).
+ * 
+ * Rows are packed into words of 64 columns, so each row is computed from the
+ * previous one with a single shift-and-OR over the row, rather than one
+ * column at a time.
+ * 
+ * If keeping every row would exceed a memory budget, the table instead keeps
+ * only every k-th row as a checkpoint, and recomputes the rows in between 
+ * as they are read. Tracebacks read rows from the bottom up, so if there is
+ * room for the k - 1 rows of a whole segment as well, each segment is only
+ * recomputed once, which costs about one extra pass over the items. For L
+ * items, that needs L/k + k - 1 rows, so k is the smallest interval for which
+ * that fits in the budget, which is possible as long as the budget has room for
+ * about 2 * sqrt(L) rows.
+ * 
+ * With less room than that, segments are recomputed by halving instead: reading
+ * a row recomputes the rows from the closest one kept below it, keeping the row
+ * halfway there, then the row halfway from that one, and so on. Reading a segment
+ * of k rows backwards then keeps about log2(k) rows and costs about log2(k)
+ * passes over it, so the whole table fits in as little as log2(L) + 4 rows, or
+ * O(width * log L) bits. {@link SumTable#checkpointedBytes(int, int, long)} is
+ * what a table would take for a given budget, which is only over it if even that
+ * doesn't fit.
+ * 
+ * Once built, the table itself never changes: rows are read through a
+ * {@link SumTable.Reader}, which recomputes segments into scratch rows of its own,
+ * so any number of threads can read one table at once, each with its own reader.
+ * 
+ * Each row depends only on the previous one, so wide rows can be split into
+ * chunks of words and computed in parallel on a {@link ForkJoinPool}, one row
+ * at a time. This gives exactly the same table as computing them sequentially.
+ */
+final class SumTable {
+
+	/** The sum represented by column 0 */
+	final int offset;
+	/** The number of sums (columns) represented in each row */
+	final int width;
+	
+	private final int[] items;
+	// Rows 0, interval, 2*interval, ... (or every row if interval == 1)
+	private final long[][] checkpoints;
+	private final int interval;
+	// The number of recomputed rows each reader keeps
+	private final int slots;
+	
+	// The pool used to compute rows at least parallelCutoff columns wide, or null
+	private final ForkJoinPool pool;
+	private final int parallelCutoff;
+	
+	private SumTable(int[] items, int offset, int width, int interval, int slots,
+			ForkJoinPool pool, int parallelCutoff) {
+		this.items = items;
+		this.offset = offset;
+		this.width = width;
+		this.interval = interval;
+		this.slots = slots;
+		this.pool = pool;
+		this.parallelCutoff = parallelCutoff;
+		int length = items.length;
+		checkpoints = new long[(length + interval - 1) / interval][words(width)];
+	}
+	
+	/**
+	 * Builds the table for the given items, covering sums from
+	 * offset to (offset + width - 1). Sums outside of that range are dropped.
+	 * The table will keep every row if it fits in memoryBudget bytes, and
+	 * otherwise only keeps as many checkpoint rows as fit, down to a minimum
+	 * of about log2(items.length) rows, which may still not fit.
+	 */
+	static SumTable build(int[] items, int offset, int width, long memoryBudget) {
+		return build(items, offset, width, memoryBudget, null, 0);
+	}
+	
+	/**
+	 * Builds the table as in {@link SumTable#build(int[], int, int, long)}, 
+	 * but computes rows which are at least parallelCutoff columns wide
+	 * in parallel, using the given pool.
+	 */
+	static SumTable build(int[] items, int offset, int width, long memoryBudget, 
+			ForkJoinPool pool, int parallelCutoff) {
+		int[] layout = layout(items.length, memoryBudget / rowBytes(width));
+		SumTable table = new SumTable(items, offset, width, layout[0], layout[1], pool, parallelCutoff);
+		table.fill();
+		return table;
+	}
+	
+	// Chooses the checkpoint interval and the number of rows each reader keeps
+	// for a table of the given length, with room for the given number of rows
+	private static int[] layout(int length, long rows) {
+		if (length <= rows) return new int[] { 1, 0 };
+		
+		// Keep whole segments if they fit, with the most checkpoints that leave
+		// room for one, so readers need as little as possible
+		int root = (int) Math.ceil(Math.sqrt(length));
+		for (int interval = 2; interval <= root; interval++) {
+			if ((length + interval - 1) / interval + interval - 1 <= rows) {
+				return new int[] { interval, interval - 1 };
+			}
+		}
+		
+		// Otherwise readers halve their way through segments, which needs a row
+		// for each halving plus two to recompute rows in, and the rest of the
+		// budget goes to checkpoints
+		int checkpoints = (int) Math.max(1, Math.min(length, rows - log2(length) - 3));
+		int interval = (length + checkpoints - 1) / checkpoints;
+		return new int[] { interval, log2(interval) + 1 };
+	}
+	
+	// The number of rows a reader of a table with the given layout allocates
+	private static int readerRows(int[] layout) {
+		return layout[1] >= layout[0] - 1 ? layout[1] : layout[1] + 2;
+	}
+	
+	// The number of halvings it takes to get from n down to 1
+	private static int log2(int n) {
+		return 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+	
+	private static long rowBytes(int width) {
+		return words(width) * 8L;
+	}
+	
+	/**
+	 * Returns the number of bytes needed to keep every row of a table
+	 * with the given number of items and columns.
+	 */
+	static long fullBytes(int length, int width) {
+		return length * rowBytes(width);
+	}
+	
+	/**
+	 * Returns the number of bytes a checkpointed table with the given number of
+	 * items and columns needs, including one reader's rows, if it is built to fit
+	 * in the given budget. This is only over the budget if the smallest layout is.
+	 */
+	static long checkpointedBytes(int length, int width, long memoryBudget) {
+		int[] layout = layout(length, checkpointedRows(length, width, memoryBudget));
+		return ((length + layout[0] - 1) / layout[0] + readerRows(layout)) * rowBytes(width);
+	}
+	
+	/**
+	 * Returns about how many cells building and tracing back through a checkpointed
+	 * table with the given number of items and columns computes, if it is built to
+	 * fit in the given budget: twice the table if whole segments fit, and otherwise
+	 * another pass for each time segments are halved.
+	 */
+	static long checkpointedCells(int length, int width, long memoryBudget) {
+		int[] layout = layout(length, checkpointedRows(length, width, memoryBudget));
+		int passes = layout[1] >= layout[0] - 1 ? 2 : 1 + log2(layout[0]);
+		return (long) length * width * passes;
+	}
+	
+	// The rows that fit in the given budget, but fewer than a full table
+	private static long checkpointedRows(int length, int width, long memoryBudget) {
+		return Math.min(memoryBudget / rowBytes(width), length - 1);
+	}
+	
+	/** Returns whether or not this table keeps every row in memory */
+	boolean isFull() {
+		return interval == 1;
+	}
+	
+	private void fill() {
+		// For x == 0, a(x,y) is true if y == items[0]
+		long[] row = checkpoints[0];
+		setBit(row, items[0] - offset, width);
+		long[][] scratch = interval == 1 ? null : new long[2][words(width)];
+		for (int i = 1; i < items.length; i++) {
+			int index = i % interval;
+			// Rows between checkpoints alternate between two scratch rows
+			long[] next = index == 0 ? checkpoints[i / interval] : scratch[(index - 1) & 1];
+			nextRow(row, next, i);
+			row = next;
+		}
+	}
+	
+	// Computes row i from the previous row
+	private void nextRow(long[] previous, long[] row, int i) {
+		// a(x,y) is true if a(x-1,y) is true, a(x-1, y-items[x]) is true,
+		// or items[x] == y
+		int length = words(width);
+		if (pool != null && width >= parallelCutoff) {
+			pool.invoke(new ShiftOrTask(previous, row, items[i], width, 0, length));
+		} else {
+			shiftOr(previous, row, items[i], width, 0, length);
+		}
+		setBit(row, items[i] - offset, width);
+	}
+	
+	/** Returns a new reader of this table, for use by one thread */
+	Reader reader() {
+		return new Reader();
+	}
+	
+	/**
+	 * Reads the rows of a table, recomputing them from checkpoints if needed into
+	 * scratch rows of its own. A reader is only for one thread at a time.
+	 */
+	final class Reader {
+		// Recomputed rows of one segment, in increasing order, and their indices
+		private final long[][] kept = new long[slots][];
+		private final int[] keptRows = new int[slots];
+		private int depth;
+		// Rows recomputed on the way to the ones kept, if they aren't all kept
+		private long[][] scratch;
+		
+		/**
+		 * Returns whether or not some subset of the first (row + 1) items
+		 * sums to (column + offset).
+		 */
+		boolean get(int row, int column) {
+			if (column < 0 || column >= width) return false;
+			return (row(row)[column >>> 6] & (1L << column)) != 0;
+		}
+		
+		private long[] row(int i) {
+			int start = i - i % interval;
+			if (i == start) return checkpoints[i / interval];
+			
+			// Forget any rows past this one, or from another segment
+			while (depth > 0 && (keptRows[depth - 1] > i || keptRows[depth - 1] < start)) depth--;
+			if (depth > 0 && keptRows[depth - 1] == i) return kept[depth - 1];
+			if (depth == slots) depth--;
+			
+			// Recompute the rows from the closest one kept below this one
+			int from = depth > 0 ? keptRows[depth - 1] : start;
+			long[] previous = depth > 0 ? kept[depth - 1] : checkpoints[start / interval];
+			int keep = nextKept(from, i), spare = 0;
+			for (int j = from + 1; j <= i; j++) {
+				long[] row;
+				if (j == keep) {
+					if (kept[depth] == null) kept[depth] = new long[words(width)];
+					row = kept[depth];
+					keptRows[depth++] = j;
+					keep = nextKept(j, i);
+				} else {
+					if (scratch == null) scratch = new long[2][words(width)];
+					row = scratch[spare ^= 1];
+				}
+				nextRow(previous, row, j);
+				previous = row;
+			}
+			return kept[depth - 1];
+		}
+		
+		// Chooses the next row to keep after row j, on the way to row i: every row
+		// if there's room for them all, and otherwise the one halfway to i, with
+		// the last free slot for i itself
+		private int nextKept(int j, int i) {
+			int free = slots - depth;
+			if (i - j <= free) return j + 1;
+			return free == 1 ? i : j + (i - j + 1) / 2;
+		}
+	}
+	
+	static int words(int width) {
+		return (width + 63) >>> 6;
+	}
+	
+	static void setBit(long[] row, int column, int width) {
+		if (column < 0 || column >= width) return;
+		row[column >>> 6] |= 1L << column;
+	}
+	
+	/**
+	 * Sets dest to (src | (src shifted by shift columns)), dropping any
+	 * columns that fall outside of [0, width). Shifts may be negative,
+	 * and src and dest may be the same array.
+	 */
+	static void shiftOr(long[] src, long[] dest, int shift, int width) {
+		shiftOr(src, dest, shift, width, 0, words(width));
+	}
+	
+	/**
+	 * Computes {@link SumTable#shiftOr(long[], long[], int, int)} for the words 
+	 * of dest from index from (inclusive) to to (exclusive). Only full rows can be
+	 * computed in place: otherwise, src and dest must be different arrays.
+	 */
+	static void shiftOr(long[] src, long[] dest, int shift, int width, int from, int to) {
+		int length = words(width);
+		if (shift >= width || -shift >= width) {
+			if (src != dest) System.arraycopy(src, from, dest, from, to - from);
+			return;
+		}
+		
+		if (shift >= 0) {
+			int wordShift = shift >>> 6, bitShift = shift & 63;
+			// Work from the top down, so an in-place shift only reads 
+			// words it hasn't written yet
+			for (int w = to - 1; w >= from; w--) {
+				int s = w - wordShift;
+				long shifted = 0;
+				if (s >= 0) {
+					shifted = src[s] << bitShift;
+					if (bitShift != 0 && s > 0) shifted |= src[s - 1] >>> (64 - bitShift);
+				}
+				dest[w] = src[w] | shifted;
+			}
+		} else {
+			int wordShift = (-shift) >>> 6, bitShift = (-shift) & 63;
+			// And from the bottom up for the other direction
+			for (int w = from; w < to; w++) {
+				int s = w + wordShift;
+				long shifted = 0;
+				if (s < length) {
+					shifted = src[s] >>> bitShift;
+					if (bitShift != 0 && s + 1 < length) shifted |= src[s + 1] << (64 - bitShift);
+				}
+				dest[w] = src[w] | shifted;
+			}
+		}
+		
+		// Clear any columns past the end of the row
+		int extra = width & 63;
+		if (extra != 0 && to == length) dest[length - 1] &= (1L << extra) - 1;
+	}
+	
+	// Computes a range of words of a row, splitting it in half until it's small
+	@SuppressWarnings("serial")
+	private static class ShiftOrTask extends RecursiveAction {
+		// The number of words below which we don't split a range any further
+		private final static int CHUNK = 4096;
+		
+		private final long[] src, dest;
+		private final int shift, width, from, to;
+		
+		ShiftOrTask(long[] src, long[] dest, int shift, int width, int from, int to) {
+			this.src = src;
+			this.dest = dest;
+			this.shift = shift;
+			this.width = width;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				shiftOr(src, dest, shift, width, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ShiftOrTask(src, dest, shift, width, from, middle),
+					new ShiftOrTask(src, dest, shift, width, middle, to));
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space for traversing a {@link CoachGraph} without recursion or 
+ * per-traversal allocation. Each thread has its own instance, which it reuses.
+ * 
+ * Visited users are marked by stamping them with the current epoch, so starting
+ * a new traversal just increments the epoch, rather than clearing a set. Users can
+ * also be labeled, e.g. with the index of the connected component they belong to.
+ */
+final class Traversal {
+
+	private static final ThreadLocal<Traversal> SCRATCH = new ThreadLocal<Traversal>() {
+		@Override
+		protected Traversal initialValue() {
+			return new Traversal();
+		}
+	};
+	
+	private int[] marks = new int[0];
+	private int[] labels = new int[0];
+	private int[] parents = new int[0];
+	private int epoch;
+	
+	private int[] stack = new int[64];
+	private final CoachGraph.Cursor cursor = new CoachGraph.Cursor();
+	
+	private CoachGraph graph;
+	
+	private Traversal() {
+	}
+	
+	/**
+	 * Returns this thread's traversal, reset so that no users are marked.
+	 * @param graph The graph to traverse
+	 * @param users An upper bound on the user IDs in the graph
+	 */
+	static Traversal begin(CoachGraph graph, int users) {
+		Traversal traversal = SCRATCH.get();
+		traversal.reset(graph, users);
+		return traversal;
+	}
+	
+	private void reset(CoachGraph graph, int users) {
+		this.graph = graph;
+		if (marks.length < users) {
+			int length = Math.max(users, marks.length * 2);
+			marks = Arrays.copyOf(marks, length);
+			labels = Arrays.copyOf(labels, length);
+			parents = Arrays.copyOf(parents, length);
+		}
+		if (++epoch == Integer.MAX_VALUE) {
+			// Rather than let old marks look current, start over
+			Arrays.fill(marks, 0);
+			epoch = 1;
+		}
+	}
+	
+	/** Returns whether or not the given user has been visited in this traversal */
+	boolean visited(int user) {
+		return marks[user] == epoch;
+	}
+	
+	/** Returns the label of the given visited user */
+	int label(int user) {
+		return labels[user];
+	}
+	
+	/**
+	 * Returns the user from which the given visited user was reached, or -1 if
+	 * the traversal started from them. The edges to each user's parent form a
+	 * spanning tree of everyone visited with the same label.
+	 */
+	int parent(int user) {
+		return parents[user];
+	}
+	
+	/**
+	 * Visits every unvisited user connected to the given user, including it, 
+	 * and labels them with the given label.
+	 * @return The number of users visited
+	 */
+	int visit(int start, int label) {
+		if (visited(start)) return 0;
+		
+		mark(start, label);
+		parents[start] = -1;
+		int visited = 1;
+		int size = 0;
+		stack[size++] = start;
+		while (size > 0) {
+			int user = stack[--size];
+			graph.neighbors(user, cursor);
+			for (int neighbor = cursor.next(); neighbor >= 0; neighbor = cursor.next()) {
+				if (visited(neighbor)) continue;
+				mark(neighbor, label);
+				parents[neighbor] = user;
+				visited++;
+				if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+				stack[size++] = neighbor;
+			}
+		}
+		return visited;
+	}
+	
+	private void mark(int user, int label) {
+		marks[user] = epoch;
+		labels[user] = label;
+	}
+}
@@ -0,0 +1,141 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+
+/**
+ * A fully polynomial-time approximation scheme for the Subset Sum problem,
+ * which finds a subset of positive items with the largest sum it can, up to a target.
+ *
+ * It keeps a sorted list of the sums it can make with the items seen so far, adding
+ * each item to every sum in turn, but "trims" the list by dropping any sum within a
+ * factor of (1 + epsilon / 2m) of a smaller one it kept. This keeps the list to
+ * O(m log(target) / epsilon) sums, while guaranteeing the final sum is within a
+ * factor of (1 - epsilon) of the best possible.
+ *
+ * Adapted from Cormen et al., Introduction to Algorithms, section 35.5.
+ *
+ * To find which items make up the sum, each sum points to a node recording the
+ * last item added and the node for the sum it was added to. Nodes which are no
+ * longer reachable from the list are periodically compacted away, so memory stays
+ * proportional to the size of the list.
+ */
+final class TrimmedSums {
+
+	private int[] nodeItem = new int[64];
+	private int[] nodeParent = new int[64];
+	private int nodes;
+
+	private TrimmedSums() {
+	}
+
+	/**
+	 * Returns the indices of a subset of the given items with a sum of at most
+	 * target, which is at least (1 - epsilon) times the largest such sum.
+	 * Items which are not positive are never included.
+	 */
+	static int[] solve(int[] items, int target, double epsilon) {
+		return new TrimmedSums().run(items, target, epsilon);
+	}
+
+	private int[] run(int[] items, int target, double epsilon) {
+		int m = 0;
+		for (int item : items) if (item > 0) m++;
+		double delta = epsilon / (2.0 * Math.max(1, m));
+
+		// Start with just the empty sum
+		int[] sums = new int[] { 0 };
+		int[] sumNodes = new int[] { -1 };
+		int size = 1;
+		// The number of live nodes after the last compaction
+		int compacted = 0;
+
+		for (int i = 0; i < items.length; i++) {
+			int x = items[i];
+			if (x <= 0 || x > target) continue;
+
+			// Merge the list with itself plus x, trimming as we go
+			int[] newSums = new int[2 * size];
+			int[] newNodes = new int[2 * size];
+			int newSize = 0;
+			double last = -1;
+			int a = 0, b = 0;
+			while (a < size || b < size) {
+				boolean fromA;
+				if (b >= size || (long) sums[b] + x > target) {
+					// Nothing else from the shifted list will fit
+					if (a >= size) break;
+					fromA = true;
+					b = size;
+				} else {
+					fromA = a < size && sums[a] <= sums[b] + x;
+				}
+
+				int sum = fromA ? sums[a] : sums[b] + x;
+				if (newSize == 0 || sum > last * (1 + delta)) {
+					newSums[newSize] = sum;
+					newNodes[newSize] = fromA ? sumNodes[a] : newNode(i, sumNodes[b]);
+					newSize++;
+					last = sum;
+				}
+				if (fromA) a++;
+				else b++;
+			}
+
+			sums = newSums;
+			sumNodes = newNodes;
+			size = newSize;
+
+			if (nodes > 2 * compacted + 2 * size + 64) {
+				compact(sumNodes, size);
+				compacted = nodes;
+			}
+		}
+
+		// The last sum is the largest, so follow its nodes back to find its items
+		int count = 0;
+		for (int node = sumNodes[size - 1]; node >= 0; node = nodeParent[node]) count++;
+		int[] indices = new int[count];
+		for (int node = sumNodes[size - 1]; node >= 0; node = nodeParent[node]) {
+			indices[--count] = nodeItem[node];
+		}
+		return indices;
+	}
+
+	private int newNode(int item, int parent) {
+		if (nodes == nodeItem.length) {
+			nodeItem = Arrays.copyOf(nodeItem, nodes * 2);
+			nodeParent = Arrays.copyOf(nodeParent, nodes * 2);
+		}
+		nodeItem[nodes] = item;
+		nodeParent[nodes] = parent;
+		return nodes++;
+	}
+
+	// Drops any nodes which aren't reachable from the given list, and renumbers the rest
+	private void compact(int[] sumNodes, int size) {
+		// Mark every node reachable from the list
+		boolean[] live = new boolean[nodes];
+		for (int i = 0; i < size; i++) {
+			for (int node = sumNodes[i]; node >= 0 && !live[node]; node = nodeParent[node]) {
+				live[node] = true;
+			}
+		}
+
+		// Parents are always created before their children, so we can
+		// renumber them in order and they'll still come first
+		int[] remap = new int[nodes];
+		int count = 0;
+		for (int node = 0; node < nodes; node++) {
+			if (!live[node]) continue;
+			int parent = nodeParent[node];
+			nodeItem[count] = nodeItem[node];
+			nodeParent[count] = parent < 0 ? -1 : remap[parent];
+			remap[node] = count++;
+		}
+		nodes = count;
+
+		for (int i = 0; i < size; i++) {
+			if (sumNodes[i] >= 0) sumNodes[i] = remap[sumNodes[i]];
+		}
+	}
+}
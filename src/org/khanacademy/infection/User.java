@@ -1,6 +1,9 @@
 package org.khanacademy.infection;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -13,16 +16,16 @@ public class User {
 	private int userID;
 	
 	private Infection infection;
+	// This user's index in their infection's list of users
+	int infectionIndex;
 	
-	// Coaches and pupils are "doubly linked," in the sense that
-	// they both contain a reference to each other
-	private final Set<User> coaches = new HashSet<>();
-	private final Set<User> pupils = new HashSet<>();
+	// Coaches and pupils are stored in the population's CoachGraph,
+	// which indexes them in both directions by user ID
 	
 	// We model the site version as a set of conditions, since
 	// We could in theory test "Feature A" and "Feature B"
-	// on two overlapping populations.
-	private final HashSet<String> conditions = new HashSet<>();
+	// on two overlapping populations. These are stored by each
+	// Infection and the population's ConditionRegistry.
 	
 	private final Population population;
 	
@@ -43,9 +46,23 @@ public class User {
 	}
 	
 	public Infection getInfection() {
+		// Our infection may be waiting to split up, or may have since been
+		// merged into a larger one
+		population.flushSplits();
+		return root();
+	}
+	
+	// Our current infection, even if it is waiting to split
+	Infection root() {
+		infection = infection.find();
 		return infection;
 	}
 	
+	// The same, without compressing any paths, so any number of threads can call it
+	Infection peekRoot() {
+		return infection.peek();
+	}
+	
 	public void setInfection(Infection infection) {
 		this.infection = infection;
 	}
@@ -53,58 +70,134 @@ public class User {
 	protected User(String userName, Population population) {
 		this.userName = userName;
 		this.population = population;
-		infection = new Infection();
-		infection.addUser(this);
+		infection = new Infection(population, this);
+		userID = population.incrementUserID();
+	}
+	
+	// Creates a user who isn't in an infection yet, for bulk loading
+	User(String userName, Population population, boolean bulk) {
+		this.userName = userName;
+		this.population = population;
 		userID = population.incrementUserID();
 	}
 	
 	public static boolean addCoach(User coach, User pupil) {
 		if (coach == null || pupil == null) return false;
 		if (coach == pupil) return false;
-		if (pupil.coaches.contains(coach)) return false;
+		if (coach.population != pupil.population) return false;
+		if (!coach.population.getGraph().addEdge(coach.userID, pupil.userID)) return false;
 		
-		pupil.coaches.add(coach);
-		coach.pupils.add(pupil);
-		
-		coach.infection.addUser(pupil);
+		coach.population.getForest().add(coach.userID, pupil.userID);
+		if (coach.root() != pupil.root()) coach.root().addUser(pupil);
+		MutationLog log = coach.population.getLog();
+		if (log != null) log.addCoach(coach.userID, pupil.userID);
 		return true;
 	}
 	
 	public void delete() {
-		infection.deleteUser(this);
-		for (User pupil : pupils) pupil.coaches.remove(this);
-		for (User coach : coaches) coach.pupils.remove(this);
+		// Disconnect this user one edge at a time, so anyone who was only
+		// connected through them splits off into their own infection
+		CoachGraph graph = population.getGraph();
+		int[] pupils = ids(graph.pupils(userID)), coaches = ids(graph.coaches(userID));
+		for (int coach : coaches) disconnect(population.getUser(coach), this);
+		for (int pupil : pupils) disconnect(this, population.getUser(pupil));
+		MutationLog log = population.getLog();
+		if (log != null) log.deleteUser(userID);
+		// If splits are deferred, this just marks our infection to split later
+		root().deleteUser(this);
 		population.removeUser(this);
 	}
 	
+	private static int[] ids(CoachGraph.Cursor cursor) {
+		int[] ids = new int[8];
+		int count = 0;
+		for (int id = cursor.next(); id >= 0; id = cursor.next()) {
+			if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+			ids[count++] = id;
+		}
+		return Arrays.copyOf(ids, count);
+	}
+	
+	/**
+	 * Removes the edge from the given coach to the given pupil, splitting their
+	 * infection if that disconnects it. Removing an edge that isn't a tree edge of
+	 * the {@link SpanningForest} costs O(log n), and removing a tree edge costs
+	 * O(log^2 n) amortized, plus the size of the infection that splits off, if
+	 * one does: see {@link SpanningForest#unlink(int, int)}.
+	 * For bursts of removals, see {@link Population#setDeferSplits(boolean)}.
+	 * @return True if the edge was in the graph
+	 */
 	public static boolean removeCoach(User coach, User pupil) {
 		if (coach == null || pupil == null) return false;
-		if (!pupil.coaches.contains(coach)) return false;
+		if (coach.population != pupil.population) return false;
+		if (!disconnect(coach, pupil)) return false;
+		
+		MutationLog log = coach.population.getLog();
+		if (log != null) log.removeCoach(coach.userID, pupil.userID);
+		return true;
+	}
+	
+	// Removes the edge from coach to pupil, splitting their infection if needed
+	private static boolean disconnect(User coach, User pupil) {
+		CoachGraph graph = coach.population.getGraph();
+		if (!graph.removeEdge(coach.userID, pupil.userID)) return false;
 		
-		pupil.coaches.remove(coach);
-		coach.pupils.remove(pupil);
+		// If they're still connected the other way, nothing has changed
+		if (graph.hasEdge(pupil.userID, coach.userID)) return true;
 		
-		coach.infection.prune(coach);
+		// Otherwise, only removing a tree edge can split their infection,
+		// and then we only have to move the smaller side
+		Population population = coach.population;
+		if (population.getDeferSplits()) {
+			// Or, if we're deferring splits, leave it for later
+			if (population.getForest().cut(coach.userID, pupil.userID)) {
+				population.splitLater(coach.root());
+			}
+			return true;
+		}
+		int[] split = population.getForest().unlink(coach.userID, pupil.userID);
+		if (split != null) {
+			List<User> users = new ArrayList<>(split.length);
+			for (int id : split) users.add(population.getUser(id));
+			coach.getInfection().split(users);
+		}
 		return true;
 	}
 	
+	/**
+	 * Returns a new set of the users who coach or are coached by this user.
+	 * Traversals should prefer {@link CoachGraph#neighbors(int, CoachGraph.Cursor)}, 
+	 * which doesn't allocate.
+	 */
 	public Set<User> neighbors() {
 		Set<User> neighbors = new HashSet<>();
-		neighbors.addAll(coaches);
-		neighbors.addAll(pupils);
+		CoachGraph.Cursor cursor = population.getGraph().neighbors(userID);
+		for (int id = cursor.next(); id >= 0; id = cursor.next()) {
+			neighbors.add(population.getUser(id));
+		}
 		return neighbors;
 	}
+	
+	/**
+	 * Returns whether or not this user coaches the given pupil.
+	 */
+	public boolean isCoachOf(User pupil) {
+		return population.getGraph().hasEdge(userID, pupil.userID);
+	}
 		
 	public boolean addCondition(String condition) {
-		return conditions.add(condition);
+		int id = population.getConditions().intern(condition);
+		return getInfection().setCondition(this, id, true);
 	}
 	
 	public boolean removeCondition(String condition) {
-		return conditions.remove(condition);
+		int id = population.getConditions().id(condition);
+		return id >= 0 && getInfection().setCondition(this, id, false);
 	}
 	
 	public boolean hasCondition(String condition) {
-		return conditions.contains(condition);
+		int id = population.getConditions().id(condition);
+		return id >= 0 && getInfection().hasCondition(this, id);
 	}
 	
 	/**
@@ -114,6 +207,6 @@ public class User {
 	 * @param condition The condition with which to infect users
 	 */
 	public void infect(String condition) {
-		infection.addCondition(condition);
+		getInfection().addCondition(condition);
 	}
 }
@@ -0,0 +1,177 @@
+package org.khanacademy.infection;
+
+import java.util.Arrays;
+
+/**
+ * A set of user IDs, which is stored either as a sparse hash set of IDs, or as a 
+ * dense bitset over all IDs, depending on which is smaller. Sets start sparse, and 
+ * become dense once they contain more than 1 in 64 of the IDs they could contain.
+ * They become sparse again once they drop below 1 in 256, rather than 1 in 64, so
+ * a set hovering around the threshold isn't converted back and forth on every change,
+ * and each conversion is paid for by the changes since the last one.
+ */
+final class UserSet {
+
+	// Sparse sets use an open-addressing hash table, where EMPTY marks unused slots
+	private static final int EMPTY = -1;
+	
+	// Sets become dense above 1 in DENSE of their universe, and sparse below 1 in SPARSE
+	private static final int DENSE = 64, SPARSE = 256;
+	
+	private int[] table = newTable(8);
+	private long[] words;
+	private int cardinality;
+	// One more than the largest ID ever added
+	private int universe;
+	
+	/** Returns the number of IDs in this set */
+	int cardinality() {
+		return cardinality;
+	}
+	
+	/** Returns whether or not this set is stored as a bitset */
+	boolean isDense() {
+		return words != null;
+	}
+	
+	boolean contains(int id) {
+		if (id < 0) return false;
+		if (words != null) {
+			int word = id >>> 6;
+			return word < words.length && (words[word] & (1L << id)) != 0;
+		}
+		return table[slot(table, id)] == id;
+	}
+	
+	/** 
+	 * Adds the given ID to this set.
+	 * @return True if it was not already in the set 
+	 */
+	boolean add(int id) {
+		if (id < 0) throw new IllegalArgumentException("Negative id: " + id);
+		universe = Math.max(universe, id + 1);
+		if (words != null) {
+			int word = id >>> 6;
+			if (word >= words.length) words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+			if ((words[word] & (1L << id)) != 0) return false;
+			words[word] |= 1L << id;
+			cardinality++;
+			return true;
+		}
+		
+		int slot = slot(table, id);
+		if (table[slot] == id) return false;
+		table[slot] = id;
+		cardinality++;
+		if (cardinality * (long) DENSE > universe) {
+			densify();
+		} else if (cardinality * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return true;
+	}
+	
+	/** 
+	 * Removes the given ID from this set.
+	 * @return True if it was in the set 
+	 */
+	boolean remove(int id) {
+		if (!contains(id)) return false;
+		cardinality--;
+		if (words != null) {
+			words[id >>> 6] &= ~(1L << id);
+			if (cardinality * (long) SPARSE < universe) sparsify();
+			return true;
+		}
+		
+		// Shift back any entries that probed past this slot
+		int mask = table.length - 1;
+		int hole = slot(table, id);
+		for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+			int home = hash(table[i]) & mask;
+			// Move the entry into the hole if its home isn't between the hole and it
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				table[hole] = table[i];
+				hole = i;
+			}
+		}
+		table[hole] = EMPTY;
+		return true;
+	}
+	
+	/** Removes all IDs from this set */
+	void clear() {
+		table = newTable(8);
+		words = null;
+		cardinality = 0;
+	}
+	
+	/** Returns the IDs in this set, in ascending order */
+	int[] toArray() {
+		int[] ids = new int[cardinality];
+		int i = 0;
+		if (words != null) {
+			for (int w = 0; w < words.length; w++) {
+				for (long word = words[w]; word != 0; word &= word - 1) {
+					ids[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+			}
+		} else {
+			for (int id : table) if (id != EMPTY) ids[i++] = id;
+			Arrays.sort(ids);
+		}
+		return ids;
+	}
+	
+	private void densify() {
+		long[] words = new long[(universe + 63) >>> 6];
+		for (int id : table) {
+			if (id != EMPTY) words[id >>> 6] |= 1L << id;
+		}
+		this.words = words;
+		table = null;
+	}
+	
+	private void sparsify() {
+		// Room for twice as many IDs, like the table after a rehash
+		int[] table = newTable(Integer.highestOneBit(Math.max(4, cardinality) * 4 - 1));
+		for (int w = 0; w < words.length; w++) {
+			for (long word = words[w]; word != 0; word &= word - 1) {
+				int id = (w << 6) + Long.numberOfTrailingZeros(word);
+				table[slot(table, id)] = id;
+			}
+		}
+		this.table = table;
+		words = null;
+	}
+	
+	private void rehash(int length) {
+		int[] old = table;
+		table = newTable(length);
+		for (int id : old) {
+			if (id != EMPTY) table[slot(table, id)] = id;
+		}
+	}
+	
+	// Finds the slot containing id, or the empty slot where it belongs
+	private static int slot(int[] table, int id) {
+		int mask = table.length - 1;
+		int i = hash(id) & mask;
+		while (table[i] != EMPTY && table[i] != id) i = (i + 1) & mask;
+		return i;
+	}
+	
+	private static int hash(int id) {
+		// Spread out sequential IDs, and then fold the well-mixed high bits into the
+		// low bits, which are all a slot uses, and which the multiply only fills from
+		// the ID's own low bits
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private static int[] newTable(int length) {
+		int[] table = new int[length];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+}
@@ -1,14 +1,40 @@
 package org.khanacademy.infection.tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
+import org.khanacademy.infection.ConcurrentIngestor;
+import org.khanacademy.infection.ConditionIndex;
 import org.khanacademy.infection.Infection;
+import org.khanacademy.infection.LookupClient;
+import org.khanacademy.infection.LookupServer;
+import org.khanacademy.infection.LookupStats;
+import org.khanacademy.infection.MutationLog;
 import org.khanacademy.infection.Population;
+import org.khanacademy.infection.PopulationView;
+import org.khanacademy.infection.RolloutPlan;
+import org.khanacademy.infection.RolloutPlan.Strategy;
+import org.khanacademy.infection.SizeHistogram;
+import org.khanacademy.infection.Snapshot;
 import org.khanacademy.infection.SubsetSum;
 import org.khanacademy.infection.User;
 
@@ -86,6 +112,950 @@ public class Tests {
 		assertTrue(d.hasCondition("C"));
 	}
 
+	@Test
+	public void testMergeSmallerIntoLarger() {
+		Population pop = new Population();
+
+		User teacher = pop.createUser("Teacher");
+		createInfectionGroup(pop, 50);
+		User district = pop.createUser("District");
+		createInfectionGroup(pop, 50);
+		for (int i = 0; i < 10; i++) User.addCoach(district, pop.createUser(""));
+		Infection large = district.getInfection();
+
+		// Linking the small group into the large one should keep the large one
+		User.addCoach(teacher, district);
+		assertEquals(large, teacher.getInfection());
+		assertEquals(11 + 1, large.size());
+
+		// And stale references still behave like the merged infection
+		Infection small = pop.createUser("").getInfection();
+		User.addCoach(district, pop.createUser(""));
+		assertEquals(1, small.size());
+		small.addUser(teacher);
+		assertEquals(large, teacher.getInfection());
+		assertEquals(14, small.size());
+
+		// A standalone infection joins the first user added to it, without
+		// becoming an infection of its own
+		int infections = pop.countInfections();
+		Infection standalone = new Infection();
+		assertEquals(0, standalone.size());
+		standalone.addCondition("B");
+		assertTrue(standalone.consistent("B"));
+		standalone.addUser(teacher);
+		assertTrue(!teacher.hasCondition("B"));
+		assertEquals(infections, pop.countInfections());
+		assertEquals(14, standalone.size());
+		standalone.addCondition("A");
+		assertTrue(district.hasCondition("A"));
+	}
+
+	@Test
+	public void testInfectionRegistry() {
+		Random rand = new Random(1);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 200; i++) users.add(pop.createUser(""));
+
+		// Randomly add and remove connections and users
+		for (int i = 0; i < 2000; i++) {
+			User a = users.get(rand.nextInt(users.size()));
+			User b = users.get(rand.nextInt(users.size()));
+			double r = rand.nextDouble();
+			if (r < 0.6) {
+				User.addCoach(a, b);
+			} else if (r < 0.95) {
+				User.removeCoach(a, b);
+			} else {
+				a.delete();
+				users.remove(a);
+				users.add(pop.createUser(""));
+			}
+		}
+
+		// The registry should match the users' actual infections
+		Set<Infection> expected = new HashSet<>();
+		Map<Integer, Integer> sizes = new HashMap<>();
+		for (User user : users) {
+			if (!expected.add(user.getInfection())) continue;
+			int size = user.getInfection().size();
+			sizes.put(size, sizes.containsKey(size) ? sizes.get(size) + 1 : 1);
+		}
+		assertEquals(expected, pop.getInfections());
+		assertEquals(expected.size(), pop.countInfections());
+		assertEquals(sizes.size(), pop.getInfectionSizes().length);
+		for (int size : pop.getInfectionSizes()) {
+			assertEquals((int) sizes.get(size), pop.countInfectionsOfSize(size));
+		}
+	}
+
+	@Test
+	public void testCoachGraph() {
+		Random rand = new Random(2);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 100; i++) users.add(pop.createUser(""));
+
+		// Track the expected neighbors of each user ourselves
+		Map<User, Set<User>> pupils = new HashMap<>();
+		for (User user : users) pupils.put(user, new HashSet<User>());
+
+		// Enough changes that the graph will compact its edges a few times
+		for (int i = 0; i < 10000; i++) {
+			User coach = users.get(rand.nextInt(users.size()));
+			User pupil = users.get(rand.nextInt(users.size()));
+			if (rand.nextDouble() < 0.6) {
+				assertEquals(coach != pupil && pupils.get(coach).add(pupil), User.addCoach(coach, pupil));
+			} else {
+				assertEquals(pupils.get(coach).remove(pupil), User.removeCoach(coach, pupil));
+			}
+		}
+
+		for (User user : users) {
+			Set<User> neighbors = new HashSet<>(pupils.get(user));
+			for (User other : users) {
+				assertEquals(pupils.get(user).contains(other), user.isCoachOf(other));
+				if (pupils.get(other).contains(user)) neighbors.add(other);
+			}
+			assertEquals(neighbors, user.neighbors());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testDeleteHub() {
+		// Finding each edge of a hub used to scan its whole row, so deleting one was
+		// quadratic in its degree
+		Random rand = new Random(7);
+		int pupilCount = 200000;
+		Population pop = new Population();
+		int[] coaches = new int[pupilCount], pupils = new int[pupilCount];
+		for (int i = 0; i < pupilCount; i++) pupils[i] = i + 1;
+		pop.bulkLoad(pupilCount + 1, coaches, pupils);
+		User hub = pop.getUser(0);
+
+		// One pupil with many coaches of its own, added after the bulk load
+		User popular = pop.getUser(1);
+		for (int i = 2; i < 1000; i++) User.addCoach(pop.getUser(i), popular);
+
+		// Remove some of the hub's edges, from both the compressed rows and the delta buffer
+		for (int i = 0; i < 1000; i++) {
+			User pupil = pop.getUser(1 + rand.nextInt(pupilCount));
+			assertEquals(hub.isCoachOf(pupil), User.removeCoach(hub, pupil));
+			assertTrue(!hub.isCoachOf(pupil));
+			User coach = pop.getUser(2 + rand.nextInt(998));
+			assertEquals(coach.isCoachOf(popular), User.removeCoach(coach, popular));
+			assertTrue(!coach.isCoachOf(popular));
+		}
+
+		hub.delete();
+		assertEquals(pupilCount, pop.countUsers());
+		for (int i = 1000; i <= pupilCount; i++) {
+			assertEquals(1, pop.getUser(i).getInfection().size());
+			assertEquals(0, pop.getUser(i).neighbors().size());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testCompactChangedRows() {
+		// Compaction used to rewrite every row, so churning a few edges among many
+		// users cost time proportional to the number of users each time
+		Random rand = new Random(11);
+		int userCount = 1000000;
+		Population pop = new Population();
+		pop.bulkLoad(userCount, new int[0], new int[0]);
+
+		// A hub whose row grows and shrinks, with a few users churning around it
+		User hub = pop.getUser(0);
+		Map<User, Set<User>> pupils = new HashMap<>();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			users.add(pop.getUser(i * 1000));
+			pupils.put(users.get(i), new HashSet<User>());
+		}
+		for (int i = 0; i < 200000; i++) {
+			User coach = rand.nextInt(4) == 0 ? users.get(rand.nextInt(users.size())) : hub;
+			User pupil = pop.getUser(1 + rand.nextInt(i % 50000 < 25000 ? 200 : 2000));
+			if (rand.nextDouble() < 0.6) {
+				assertEquals(coach != pupil && pupils.get(coach).add(pupil), User.addCoach(coach, pupil));
+			} else {
+				assertEquals(pupils.get(coach).remove(pupil), User.removeCoach(coach, pupil));
+			}
+		}
+
+		for (User coach : users) {
+			for (int i = 1; i <= 2000; i++) {
+				User pupil = pop.getUser(i);
+				assertEquals(pupils.get(coach).contains(pupil), coach.isCoachOf(pupil));
+			}
+		}
+	}
+
+	@Test
+	public void testLongChainSplits() {
+		// Splitting a long chain used to overflow the stack
+		Population pop = new Population();
+		createInfectionGroup(pop, 100000);
+		User a = pop.getUser(49999), b = pop.getUser(50000);
+		User.removeCoach(a, b);
+		assertEquals(50000, a.getInfection().size());
+		assertEquals(50000, b.getInfection().size());
+
+		// Deleting a user can split off several components at once
+		User hub = pop.createUser("");
+		for (int i = 0; i < 5; i++) {
+			createInfectionGroup(pop, 10);
+			User.addCoach(hub, pop.getUser(pop.countUsers() - 1));
+		}
+		assertEquals(51, hub.getInfection().size());
+		hub.delete();
+		assertEquals(7, pop.countInfections());
+		assertEquals(5, pop.countInfectionsOfSize(10));
+	}
+
+	@Test
+	public void testDynamicConnectivity() {
+		Random rand = new Random(3);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) users.add(pop.createUser(""));
+		List<User[]> edges = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			User coach = users.get(rand.nextInt(users.size()));
+			User pupil = users.get(rand.nextInt(users.size()));
+			if (User.addCoach(coach, pupil)) edges.add(new User[] { coach, pupil });
+		}
+		// Give some groups and some individual users a condition
+		for (int i = 0; i < 50; i++) users.get(rand.nextInt(users.size())).infect("A");
+		for (int i = 0; i < 50; i++) users.get(rand.nextInt(users.size())).addCondition("A");
+		
+		for (int round = 0; round < 20; round++) {
+			// Remove a random selection of edges, and delete a few users
+			for (int i = 0; i < 100 && !edges.isEmpty(); i++) {
+				User[] edge = edges.remove(rand.nextInt(edges.size()));
+				assertTrue(User.removeCoach(edge[0], edge[1]));
+			}
+			for (int i = 0; i < 5; i++) {
+				User user = users.remove(rand.nextInt(users.size()));
+				user.delete();
+				for (int j = edges.size() - 1; j >= 0; j--) {
+					if (edges.get(j)[0] == user || edges.get(j)[1] == user) edges.remove(j);
+				}
+			}
+			verifyComponents(pop, users);
+		}
+	}
+	
+	@Test
+	public void testConnectivityChurn() {
+		// Adding edges back and removing them again moves them up through the
+		// spanning forest's levels, which removals alone don't do much
+		Random rand = new Random(31);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 400; i++) users.add(pop.createUser(""));
+		List<User[]> edges = new ArrayList<>();
+		for (int round = 0; round < 40; round++) {
+			for (int i = 0; i < 300; i++) {
+				User coach = users.get(rand.nextInt(users.size()));
+				User pupil = users.get(rand.nextInt(users.size()));
+				if (User.addCoach(coach, pupil)) edges.add(new User[] { coach, pupil });
+			}
+			for (int i = 0; i < 300 && !edges.isEmpty(); i++) {
+				User[] edge = edges.remove(rand.nextInt(edges.size()));
+				assertTrue(User.removeCoach(edge[0], edge[1]));
+			}
+			verifyComponents(pop, users);
+		}
+	}
+
+	@Test
+	public void testSplitOffLargeComponents() {
+		// Splitting off more users than any search has listed yet used to
+		// return some stale IDs from the spanning forest's scratch space
+		Random rand = new Random(40);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 300; i++) users.add(pop.createUser(""));
+		List<User[]> edges = new ArrayList<>();
+		for (int step = 0; step < 3000; step++) {
+			if (rand.nextInt(3) > 0 || edges.isEmpty()) {
+				User coach = users.get(rand.nextInt(users.size()));
+				User pupil = users.get(rand.nextInt(users.size()));
+				if (User.addCoach(coach, pupil)) edges.add(new User[] { coach, pupil });
+			} else {
+				User[] edge = edges.remove(rand.nextInt(edges.size()));
+				assertTrue(User.removeCoach(edge[0], edge[1]));
+				verifyComponents(pop, users);
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRemoveRedundantEdges() {
+		// Removing an edge from a ring never splits it, but used to search up
+		// to half of the ring for a replacement
+		Random rand = new Random(37);
+		int size = 100000;
+		Population pop = new Population();
+		User[] users = new User[size];
+		for (int i = 0; i < size; i++) users[i] = pop.createUser("");
+		for (int i = 0; i < size; i++) User.addCoach(users[i], users[(i + 1) % size]);
+		for (int i = 0; i < 20000; i++) {
+			int j = rand.nextInt(size);
+			assertTrue(User.removeCoach(users[j], users[(j + 1) % size]));
+			assertEquals(size, users[j].getInfection().size());
+			assertTrue(User.addCoach(users[j], users[(j + 1) % size]));
+		}
+
+		// But cutting it twice splits it in two
+		User.removeCoach(users[0], users[1]);
+		User.removeCoach(users[size / 2], users[size / 2 + 1]);
+		assertEquals(2, pop.countInfections());
+		assertEquals(size / 2, users[1].getInfection().size());
+		assertEquals(size / 2, users[0].getInfection().size());
+	}
+
+	@Test
+	public void testDeferredSplits() {
+		Random rand = new Random(4);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) users.add(pop.createUser(""));
+		List<User[]> edges = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			User coach = users.get(rand.nextInt(users.size()));
+			User pupil = users.get(rand.nextInt(users.size()));
+			if (User.addCoach(coach, pupil)) edges.add(new User[] { coach, pupil });
+		}
+		for (int i = 0; i < 50; i++) users.get(rand.nextInt(users.size())).infect("A");
+		
+		pop.setDeferSplits(true);
+		for (int round = 0; round < 10; round++) {
+			// Remove a burst of edges and users, and add a few edges back
+			for (int i = 0; i < 200 && !edges.isEmpty(); i++) {
+				User[] edge = edges.remove(rand.nextInt(edges.size()));
+				assertTrue(User.removeCoach(edge[0], edge[1]));
+			}
+			for (int i = 0; i < 5; i++) {
+				User user = users.remove(rand.nextInt(users.size()));
+				user.delete();
+				for (int j = edges.size() - 1; j >= 0; j--) {
+					if (edges.get(j)[0] == user || edges.get(j)[1] == user) edges.remove(j);
+				}
+			}
+			for (int i = 0; i < 20; i++) {
+				User coach = users.get(rand.nextInt(users.size()));
+				User pupil = users.get(rand.nextInt(users.size()));
+				if (User.addCoach(coach, pupil)) edges.add(new User[] { coach, pupil });
+			}
+			// Nothing has split until we flush
+			assertTrue(pop.flushSplits() > 0);
+			assertEquals(0, pop.flushSplits());
+			verifyComponents(pop, users);
+		}
+		
+		// And the spanning forest is still right for splitting right away
+		pop.setDeferSplits(false);
+		for (int i = 0; i < 500 && !edges.isEmpty(); i++) {
+			User[] edge = edges.remove(rand.nextInt(edges.size()));
+			User.removeCoach(edge[0], edge[1]);
+		}
+		verifyComponents(pop, users);
+	}
+	
+	@Test
+	public void testBulkLoad() {
+		Random rand = new Random(5);
+		Population pop = new Population();
+		User existing = pop.createUser("existing");
+		createInfectionGroup(pop, 10);
+		
+		// Random edges, including duplicates, self-edges and edges to existing users
+		int count = 5000;
+		int[] coaches = new int[6000], pupils = new int[6000];
+		for (int i = 0; i < coaches.length; i++) {
+			coaches[i] = 11 + rand.nextInt(count);
+			pupils[i] = 11 + rand.nextInt(count);
+		}
+		coaches[0] = coaches[1];
+		pupils[0] = pupils[1];
+		coaches[2] = pupils[2];
+		coaches[3] = existing.getUserID();
+		pupils[4] = 10;
+		User[] users = pop.bulkLoad(count, coaches, pupils);
+		assertEquals(count, users.length);
+		assertEquals(11, users[0].getUserID());
+		assertTrue(existing.getInfection() == pop.getUser(pupils[3]).getInfection());
+		
+		List<User> all = new ArrayList<>();
+		for (int id = 0; id < pop.userIDLimit(); id++) all.add(pop.getUser(id));
+		for (int i = 0; i < coaches.length; i++) {
+			if (coaches[i] != pupils[i]) assertTrue(pop.getUser(coaches[i]).isCoachOf(pop.getUser(pupils[i])));
+		}
+		verifyComponents(pop, all);
+		
+		// Bulk loaded users can be split up like any others
+		for (int i = 0; i < 2000; i++) User.removeCoach(pop.getUser(coaches[i]), pop.getUser(pupils[i]));
+		verifyComponents(pop, all);
+	}
+	
+	@Test
+	public void testConcurrentIngestion() throws InterruptedException {
+		Random rand = new Random(6);
+		// The same random edges, ingested by many threads and by one
+		final int threads = 8, count = 20000, existing = 100;
+		final int[] coaches = new int[24000], pupils = new int[24000];
+		for (int i = 0; i < coaches.length; i++) {
+			coaches[i] = rand.nextInt(existing + count);
+			pupils[i] = existing + rand.nextInt(count);
+		}
+		Population sequential = new Population();
+		for (int i = 0; i < existing + count; i++) sequential.createUser("user" + i);
+		for (int i = 0; i < coaches.length; i++) {
+			User.addCoach(sequential.getUser(coaches[i]), sequential.getUser(pupils[i]));
+		}
+		
+		final Population pop = new Population();
+		for (int i = 0; i < existing; i++) pop.createUser("user" + i);
+		final ConcurrentIngestor ingestor = new ConcurrentIngestor(pop, threads);
+		final int[] ids = new int[count];
+		runThreads(threads, new Task() {
+			public void run(int thread) {
+				for (int i = thread; i < count; i += threads) ids[i] = ingestor.createUser("user" + (existing + i));
+			}
+		});
+		// IDs are handed out in whatever order the threads get to them
+		final int[] byName = new int[existing + count];
+		for (int i = 0; i < existing; i++) byName[i] = i;
+		for (int i = 0; i < count; i++) byName[existing + i] = ids[i];
+		runThreads(threads, new Task() {
+			public void run(int thread) {
+				for (int i = thread; i < coaches.length; i += threads) {
+					ingestor.addCoach(byName[coaches[i]], byName[pupils[i]]);
+				}
+			}
+		});
+		assertEquals(count, ingestor.countUsers());
+		assertTrue(ingestor.isConnected(byName[pupils[0]], byName[pupils[0]]));
+		User[] users = ingestor.commit();
+		assertEquals(count, users.length);
+		assertEquals(sequential.countInfections(), pop.countInfections());
+		
+		// Same edges, and users in the same infections as the sequential build
+		Map<Infection, Infection> matching = new HashMap<>();
+		for (int i = 0; i < existing + count; i++) {
+			User expected = sequential.getUser(i), actual = pop.getUser(byName[i]);
+			assertEquals(expected.getUserName(), actual.getUserName());
+			assertEquals(expected.neighbors().size(), actual.neighbors().size());
+			Infection infection = matching.get(expected.getInfection());
+			if (infection == null) matching.put(expected.getInfection(), infection = actual.getInfection());
+			assertTrue(infection == actual.getInfection());
+		}
+		
+		// And the spanning forest still lets them split correctly
+		List<User> all = new ArrayList<>();
+		for (int id = 0; id < pop.userIDLimit(); id++) all.add(pop.getUser(id));
+		for (int i = 0; i < 8000; i++) User.removeCoach(pop.getUser(byName[coaches[i]]), pop.getUser(byName[pupils[i]]));
+		verifyComponents(pop, all);
+	}
+	
+	private interface Task {
+		void run(int thread);
+	}
+	
+	private static void runThreads(int threads, final Task task) throws InterruptedException {
+		Thread[] running = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			running[i] = new Thread(new Runnable() {
+				public void run() {
+					task.run(thread);
+				}
+			});
+			running[i].start();
+		}
+		for (Thread thread : running) thread.join();
+	}
+	
+	@Test
+	public void testSnapshot() throws IOException {
+		Random rand = new Random(7);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			users.add(pop.createUser(i % 100 == 3 ? null : i % 100 == 4 ? "" : "user" + i + "\u00e9"));
+		}
+		for (int i = 0; i < 1200; i++) {
+			User.addCoach(users.get(rand.nextInt(users.size())), users.get(rand.nextInt(users.size())));
+		}
+		User.addCoach(users.get(1), users.get(2));
+		User.addCoach(users.get(2), users.get(1));
+		users.remove(500).delete();
+		for (int i = 0; i < 20; i++) users.get(rand.nextInt(users.size())).infect("A");
+		for (int i = 0; i < 20; i++) users.get(rand.nextInt(users.size())).addCondition("B");
+		
+		Path path = Files.createTempFile("population", ".snapshot");
+		try {
+			Snapshot.write(pop, path);
+			Snapshot snapshot = Snapshot.open(path);
+			assertEquals(pop.countUsers(), snapshot.countUsers());
+			assertEquals(pop.countInfections(), snapshot.countInfections());
+			assertTrue(!snapshot.exists(500));
+			assertEquals(pop.countUsersWithCondition("B"), snapshot.countUsersWithCondition("B"));
+			
+			Population restored = snapshot.restore();
+			List<User> restoredUsers = new ArrayList<>();
+			for (User user : users) {
+				int id = user.getUserID();
+				User copy = restored.getUser(id);
+				restoredUsers.add(copy);
+				assertEquals(user.getUserName(), snapshot.userName(id));
+				assertEquals(user.getUserName(), copy.getUserName());
+				for (String condition : new String[] { "A", "B" }) {
+					assertEquals(user.hasCondition(condition), snapshot.hasCondition(id, condition));
+					assertEquals(user.hasCondition(condition), copy.hasCondition(condition));
+				}
+				for (int pupil : snapshot.pupils(id)) assertTrue(user.isCoachOf(pop.getUser(pupil)));
+				assertEquals(user.neighbors().size(), copy.neighbors().size());
+			}
+			assertEquals(pop.userIDLimit(), restored.userIDLimit());
+			assertEquals(pop.countUsersWithCondition("A"), restored.countUsersWithCondition("A"));
+			verifyComponents(restored, restoredUsers);
+			for (Infection infection : restored.getInfections()) assertTrue(infection.consistent("A"));
+			
+			// The restored spanning forest still splits infections correctly
+			for (int i = 0; i < 200; i++) {
+				User coach = restoredUsers.get(rand.nextInt(restoredUsers.size()));
+				for (User neighbor : coach.neighbors()) User.removeCoach(coach, neighbor);
+			}
+			verifyComponents(restored, restoredUsers);
+			
+			// Writing over a snapshot moves the new one into place, leaving nothing behind
+			Snapshot.write(restored, path);
+			assertEquals(restored.countInfections(), Snapshot.open(path).countInfections());
+			assertTrue(!Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	@Test
+	public void testMutationLog() throws IOException {
+		Random rand = new Random(8);
+		Path dir = Files.createTempDirectory("population");
+		Path snapshot = dir.resolve("snapshot"), log = dir.resolve("log");
+		try {
+			Population pop = MutationLog.recover(snapshot, log);
+			pop.getLog().setGroupBytes(1 << 10);
+			mutate(pop, 500, rand);
+			
+			// Keep a copy of the log from before the checkpoint
+			pop.getLog().commit();
+			Path old = dir.resolve("old");
+			Files.copy(log, old);
+			pop.getLog().checkpoint(pop, snapshot);
+			assertEquals(1, pop.getLog().getGeneration());
+			mutate(pop, 200, rand);
+			pop.getLog().commit();
+			
+			// Crash, leaving a torn frame at the end of the log
+			Files.write(log, new byte[] { 0, 0, 1, 0, 7, 7 }, StandardOpenOption.APPEND);
+			Population recovered = MutationLog.recover(snapshot, log);
+			assertSamePopulation(pop, recovered);
+			
+			// It can carry on logging where it left off
+			mutate(recovered, 100, rand);
+			recovered.getLog().close();
+			pop.getLog().close();
+			assertSamePopulation(recovered, MutationLog.recover(snapshot, log));
+
+			// A corrupt length is torn too, rather than something to allocate
+			Files.write(log, new byte[] { 0x7F, -1, -1, -16, 0, 0, 0, 0, 7 }, StandardOpenOption.APPEND);
+			Population corrupt = MutationLog.recover(snapshot, log);
+			assertSamePopulation(recovered, corrupt);
+			corrupt.getLog().close();
+			Path newer = dir.resolve("newer");
+			Files.copy(log, newer);
+			
+			// A log which was already checkpointed is skipped
+			Files.move(old, log, StandardCopyOption.REPLACE_EXISTING);
+			Population checkpointed = MutationLog.recover(snapshot, log);
+			assertEquals(Snapshot.open(snapshot).countUsers(), checkpointed.countUsers());
+			checkpointed.getLog().close();
+			
+			// But a log newer than the snapshot is kept, and recovery fails
+			Files.move(newer, log, StandardCopyOption.REPLACE_EXISTING);
+			Files.delete(snapshot);
+			boolean failed = false;
+			try {
+				MutationLog.recover(snapshot, log);
+			} catch (IOException e) {
+				failed = true;
+			}
+			assertTrue(failed);
+			try (MutationLog kept = MutationLog.open(log)) {
+				assertEquals(1, kept.getGeneration());
+			}
+		} finally {
+			try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+				for (Path path : paths) Files.delete(path);
+			}
+			Files.delete(dir);
+		}
+	}
+	
+	@Test
+	public void testMutationLogDeferredSplits() throws IOException {
+		Path dir = Files.createTempDirectory("population");
+		Path snapshot = dir.resolve("snapshot"), log = dir.resolve("log");
+		try {
+			Population pop = MutationLog.recover(snapshot, log);
+			pop.setDeferSplits(true);
+			for (int i = 0; i < 9; i++) pop.createUser("user" + i);
+			for (int i = 0; i < 8; i++) User.addCoach(pop.getUser(i), pop.getUser(i + 1));
+			Infection infection = pop.getUser(0).getInfection();
+
+			// Deleting the middle of the chain leaves a split pending, which has
+			// to happen before the infection is infected, or replay infects less
+			pop.getUser(4).delete();
+			infection.addCondition("X");
+			int infected = 0;
+			for (int i = 0; i < 9; i++) {
+				if (i != 4 && pop.getUser(i).hasCondition("X")) infected++;
+			}
+			assertEquals(4, infected);
+			assertEquals(4, pop.countUsersWithCondition("X"));
+
+			// And the same for removing one, which only leaves it on the part that splits off
+			pop.getUser(pop.getUser(0).hasCondition("X") ? 2 : 6).delete();
+			infection.removeCondition("X");
+			assertTrue(pop.countUsersWithCondition("X") > 0);
+			assertTrue(pop.countUsersWithCondition("X") < 3);
+			pop.getLog().close();
+
+			Population recovered = MutationLog.recover(snapshot, log);
+			assertSamePopulation(pop, recovered);
+			for (int i = 0; i < 9; i++) {
+				User user = pop.getUser(i);
+				if (user != null) assertEquals(user.hasCondition("X"), recovered.getUser(i).hasCondition("X"));
+			}
+			assertEquals(pop.countUsersWithCondition("X"), recovered.countUsersWithCondition("X"));
+			recovered.getLog().close();
+		} finally {
+			try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+				for (Path path : paths) Files.delete(path);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	// Makes some random changes to a population
+	private static void mutate(Population pop, int users, Random rand) {
+		int first = pop.userIDLimit();
+		// Some null names, which have to come back as null rather than empty
+		for (int i = 0; i < users; i++) pop.createUser((first + i) % 10 == 3 ? null : "user" + (first + i));
+		for (int i = 0; i < users; i++) {
+			User.addCoach(pop.getUser(first + rand.nextInt(users)), pop.getUser(first + rand.nextInt(users)));
+		}
+		pop.limitedInfection("A" + first, users / 3, 0);
+		for (int i = 0; i < users / 10; i++) {
+			User user = pop.getUser(first + rand.nextInt(users));
+			if (user == null) continue;
+			switch (i % 4) {
+			case 0:
+				user.delete();
+				break;
+			case 1:
+				for (User neighbor : user.neighbors()) User.removeCoach(user, neighbor);
+				break;
+			case 2:
+				user.addCondition("B");
+				break;
+			case 3:
+				user.getInfection().removeCondition("A" + first);
+				break;
+			}
+		}
+	}
+	
+	private static void assertSamePopulation(Population expected, Population actual) {
+		assertEquals(expected.userIDLimit(), actual.userIDLimit());
+		assertEquals(expected.countUsers(), actual.countUsers());
+		assertEquals(expected.countInfections(), actual.countInfections());
+		Map<Infection, Infection> infections = new HashMap<>();
+		for (int id = 0; id < expected.userIDLimit(); id++) {
+			User user = expected.getUser(id), copy = actual.getUser(id);
+			assertEquals(user == null, copy == null);
+			if (user == null) continue;
+			assertEquals(user.getUserName(), copy.getUserName());
+			assertEquals(user.neighbors().size(), copy.neighbors().size());
+			assertEquals(user.hasCondition("B"), copy.hasCondition("B"));
+			assertEquals(user.hasCondition("A0"), copy.hasCondition("A0"));
+			Infection infection = infections.get(user.getInfection());
+			if (infection == null) infections.put(user.getInfection(), copy.getInfection());
+			else assertTrue(infection == copy.getInfection());
+		}
+	}
+	
+	// Checks that each user's infection is exactly their connected component,
+	// and that the condition counts still match the users
+	private static void verifyComponents(Population pop, List<User> users) {
+		Set<User> seen = new HashSet<>();
+		int components = 0, infected = 0;
+		for (User user : users) {
+			if (user.hasCondition("A")) infected++;
+			if (seen.contains(user)) continue;
+			components++;
+			List<User> component = new ArrayList<>();
+			component.add(user);
+			seen.add(user);
+			for (int i = 0; i < component.size(); i++) {
+				for (User neighbor : component.get(i).neighbors()) {
+					if (seen.add(neighbor)) component.add(neighbor);
+				}
+			}
+			for (User member : component) assertTrue(member.getInfection() == user.getInfection());
+			assertEquals(component.size(), user.getInfection().size());
+		}
+		assertEquals(components, pop.countInfections());
+		assertEquals(infected, pop.countUsersWithCondition("A"));
+	}
+
+	@Test
+	public void testLookupServer() throws Exception {
+		Random rand = new Random(9);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) users.add(pop.createUser(""));
+		for (int i = 0; i < 2500; i++) {
+			User.addCoach(users.get(rand.nextInt(users.size())), users.get(rand.nextInt(users.size())));
+		}
+		for (int i = 0; i < 10; i++) users.get(rand.nextInt(users.size())).infect("A");
+		for (int i = 0; i < 200; i++) users.get(rand.nextInt(users.size())).addCondition("B");
+		users.get(0).getInfection().infectUpTo("C", 1);
+		users.remove(100).delete();
+		
+		String[] conditions = { "A", "B", "C", "unused" };
+		ConditionIndex index = ConditionIndex.build(pop);
+		assertEquals(-1, index.conditionID("unused"));
+		for (User user : users) {
+			for (String condition : conditions) {
+				assertEquals(user.hasCondition(condition), index.hasCondition(user.getUserID(), condition));
+			}
+		}
+		
+		try (LookupServer server = LookupServer.start(index, 0);
+				LookupClient client = LookupClient.connect(server.getPort())) {
+			int[] ids = new int[conditions.length];
+			for (int i = 0; i < ids.length; i++) ids[i] = client.conditionID(conditions[i]);
+			assertEquals(index.conditionID("B"), ids[1]);
+			
+			// Batches sent back to back are answered in order
+			int batches = 5, size = 1000;
+			int[][] userIDs = new int[batches][size], conditionIDs = new int[batches][size];
+			for (int b = 0; b < batches; b++) {
+				for (int i = 0; i < size; i++) {
+					userIDs[b][i] = rand.nextInt(pop.userIDLimit() + 10) - 5;
+					conditionIDs[b][i] = ids[rand.nextInt(ids.length)];
+				}
+				client.send(userIDs[b], conditionIDs[b], 0, size);
+			}
+			assertEquals(batches, client.getPending());
+			boolean[] results = new boolean[size];
+			for (int b = 0; b < batches; b++) {
+				assertEquals(size, client.receive(results));
+				for (int i = 0; i < size; i++) {
+					User user = pop.getUser(userIDs[b][i]);
+					boolean expected = user != null && conditionIDs[b][i] >= 0 && 
+							user.hasCondition(index.conditionName(conditionIDs[b][i]));
+					assertEquals(expected, results[i]);
+				}
+			}
+			User infected = null;
+			for (User user : users) if (user.hasCondition("C")) infected = user;
+			assertArrayEquals(new boolean[] { true, false }, client.lookup(
+					new int[] { infected.getUserID(), infected.getUserID() }, new int[] { ids[2], ids[3] }));
+			
+			LookupStats stats = LookupClient.loadTest(server.getPort(), 2, 20, 100, 4, 
+					pop.userIDLimit(), conditions);
+			assertEquals(40, stats.getRequests());
+			assertEquals(4000, stats.getLookups());
+			assertTrue(stats.getLatencyPercentileNanos(50) <= stats.getLatencyPercentileNanos(99));
+			assertEquals(batches * size + 2 + 4000, server.getStats().getLookups());
+		}
+		
+		// Closing the server stops the thread accepting connections
+		LookupServer server = LookupServer.start(index, 0);
+		String acceptor = "lookup-server-" + server.getPort();
+		server.close();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (!thread.getName().equals(acceptor)) continue;
+			thread.join(1000);
+			assertTrue(!thread.isAlive());
+		}
+	}
+	
+	@Test
+	public void testConditions() {
+		Random rand = new Random(10);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) users.add(pop.createUser(""));
+
+		// Start with a few users, so conditions are stored sparsely, and then add
+		// enough that they become dense, checking against our own sets as we go
+		Map<String, Set<User>> expected = new HashMap<>();
+		for (int round = 0; round < 3; round++) {
+			int changes = round == 0 ? 100 : 5000;
+			for (int i = 0; i < changes; i++) {
+				String condition = "C" + rand.nextInt(3);
+				User user = users.get(rand.nextInt(users.size()));
+				if (!expected.containsKey(condition)) expected.put(condition, new HashSet<User>());
+				if (rand.nextDouble() < 0.7) {
+					assertEquals(expected.get(condition).add(user), user.addCondition(condition));
+				} else {
+					assertEquals(expected.get(condition).remove(user), user.removeCondition(condition));
+				}
+			}
+
+			for (String condition : expected.keySet()) {
+				assertEquals(expected.get(condition).size(), pop.countUsersWithCondition(condition));
+				for (User user : users) {
+					assertEquals(expected.get(condition).contains(user), user.hasCondition(condition));
+				}
+			}
+		}
+
+		// Then remove nearly everyone, so they become sparse again, and add a few back
+		for (String condition : expected.keySet()) {
+			Set<User> members = expected.get(condition);
+			for (User member : new ArrayList<>(members)) {
+				if (members.size() <= 10) break;
+				assertTrue(member.removeCondition(condition));
+				members.remove(member);
+			}
+			for (int i = 0; i < 20; i++) {
+				User member = users.get(rand.nextInt(users.size()));
+				assertEquals(members.add(member), member.addCondition(condition));
+			}
+			assertEquals(members.size(), pop.countUsersWithCondition(condition));
+			for (User member : users) assertEquals(members.contains(member), member.hasCondition(condition));
+		}
+
+		// Deleted users shouldn't be counted
+		User user = users.get(0);
+		user.addCondition("D");
+		assertEquals(1, pop.countUsersWithCondition("D"));
+		user.delete();
+		assertEquals(0, pop.countUsersWithCondition("D"));
+		assertEquals(0, pop.countUsersWithCondition("Unused"));
+	}
+
+	@Test
+	public void testEvaluateConditions() {
+		Random rand = new Random(11);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 40000; i++) users.add(pop.createUser(""));
+		for (int i = 0; i < 30000; i++) {
+			User.addCoach(users.get(rand.nextInt(users.size())), users.get(rand.nextInt(users.size())));
+		}
+		for (int i = 0; i < 200; i++) users.get(rand.nextInt(users.size())).infect("A");
+		for (int i = 0; i < 3000; i++) users.get(rand.nextInt(users.size())).addCondition("B");
+		for (int i = 0; i < 100; i++) users.get(rand.nextInt(users.size())).getInfection().addCondition("C");
+		for (int i = 0; i < 500; i++) users.get(rand.nextInt(users.size())).removeCondition("C");
+		pop.getUser(7).delete();
+		
+		String[] conditions = { "C", "unused", "A", "B" };
+		int[] ids = new int[50000];
+		for (int i = 0; i < ids.length; i++) ids[i] = rand.nextInt(pop.userIDLimit() + 20) - 10;
+		ids[0] = 7;
+		long[] masks = pop.evaluateConditions(ids, conditions);
+		for (int i = 0; i < ids.length; i++) {
+			User user = pop.getUser(ids[i]);
+			long expected = 0;
+			for (int j = 0; j < conditions.length; j++) {
+				if (user != null && user.hasCondition(conditions[j])) expected |= 1L << j;
+			}
+			assertEquals(expected, masks[i]);
+		}
+		assertEquals(0, masks[0]);
+		
+		// The parallel path gives the same answers, as do sorted IDs
+		assertArrayEquals(masks, pop.evaluateConditions(ids, conditions, new ForkJoinPool(4)));
+		int[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		long[] sortedMasks = pop.evaluateConditions(sorted, conditions);
+		for (int i = 0; i < sorted.length; i++) {
+			assertEquals(pop.evaluateConditions(new int[] { sorted[i] }, conditions)[0], sortedMasks[i]);
+		}
+	}
+	
+	@Test
+	public void testGroupConditions() {
+		Random rand = new Random(12);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 200; i++) users.add(pop.createUser(""));
+
+		// Track every user's conditions ourselves, through merges and splits
+		Map<User, Set<String>> expected = new HashMap<>();
+		for (User user : users) expected.put(user, new HashSet<String>());
+
+		for (int i = 0; i < 3000; i++) {
+			User a = users.get(rand.nextInt(users.size()));
+			User b = users.get(rand.nextInt(users.size()));
+			String condition = "C" + rand.nextInt(3);
+			double r = rand.nextDouble();
+			if (r < 0.02) {
+				a.delete();
+				users.remove(a);
+				expected.remove(a);
+				User user = pop.createUser("");
+				users.add(user);
+				expected.put(user, new HashSet<String>());
+			} else if (r < 0.3) {
+				User.addCoach(a, b);
+			} else if (r < 0.5) {
+				User.removeCoach(a, b);
+			} else if (r < 0.6) {
+				a.infect(condition);
+				for (User user : users) {
+					if (user.getInfection() == a.getInfection()) expected.get(user).add(condition);
+				}
+			} else if (r < 0.7) {
+				a.getInfection().removeCondition(condition);
+				for (User user : users) {
+					if (user.getInfection() == a.getInfection()) expected.get(user).remove(condition);
+				}
+			} else if (r < 0.85) {
+				assertEquals(expected.get(a).add(condition), a.addCondition(condition));
+			} else {
+				assertEquals(expected.get(a).remove(condition), a.removeCondition(condition));
+			}
+		}
+
+		for (int c = 0; c < 3; c++) {
+			String condition = "C" + c;
+			int count = 0;
+			for (User user : users) {
+				boolean has = expected.get(user).contains(condition);
+				assertEquals(has, user.hasCondition(condition));
+				if (has) count++;
+
+				// Check consistency against the other users in the infection
+				boolean consistent = true;
+				for (User other : users) {
+					if (other.getInfection() != user.getInfection()) continue;
+					consistent &= expected.get(other).contains(condition) == has;
+				}
+				assertEquals(consistent, user.getInfection().consistent(condition));
+			}
+			assertEquals(count, pop.countUsersWithCondition(condition));
+		}
+	}
+
 	@Test
 	public void testSubsetSum() {
 		// Randomized trials
@@ -116,6 +1086,165 @@ public class Tests {
 		}
 	}
 
+	@Test
+	public void testSubsetSumIsComplete() {
+		Random rand = new Random(13);
+		// With positive items, the solver should find a subset whenever one exists
+		for (int i = 0; i < 100; i++) {
+			int[] array = randomArray(1, 200, 20, rand);
+			boolean[] reachable = reachableSums(array);
+
+			int n = rand.nextInt(reachable.length - 1) + 1;
+
+			assertEquals(reachable[n], SubsetSum.subsetSum(array, n, 0) != null);
+			verifySubsetSum(array, n, 0);
+		}
+	}
+
+	@Test
+	public void testSubsetSumMemoryBudget() {
+		Random rand = new Random(14);
+		// Checkpointed tables should give exactly the same results as full ones
+		for (int i = 0; i < 100; i++) {
+			int[] array = randomArray(-100, 100, rand.nextInt(40) + 1, rand);
+			int n = rand.nextInt(301) - 150;
+			int threshold = rand.nextInt(5);
+
+			int[] full = SubsetSum.subsetSum(array, n, threshold);
+			int[] checkpointed = SubsetSum.subsetSum(array, n, threshold, 
+					0, null, SubsetSum.DEFAULT_PARALLEL_CUTOFF);
+			assertArrayEquals(full, checkpointed);
+		}
+	}
+
+	@Test
+	public void testCheckpointedTableFitsBudget() {
+		// Checkpointed tables keep as many rows as the memory budget has room for,
+		// down to about log2(pieces), and still find exactly the right infections
+		Population pop = new Population();
+		for (int size = 1; size <= 400; size++) createInfectionGroup(pop, size);
+		pop.setReuseTables(false);
+		int n = pop.countUsers() / 3;
+		RolloutPlan full = pop.planLimitedInfectionExact(n, 0);
+		assertEquals(Strategy.EXACT, full.getStrategy());
+
+		// Each of the 400 pieces is a row of the full table
+		long row = full.getEstimatedBytes() / 400;
+		for (int rows : new int[] { 300, 60, 39, 20, 13 }) {
+			pop.setMemoryBudget(rows * row);
+			RolloutPlan plan = pop.planLimitedInfectionExact(n, 0);
+			assertEquals(Strategy.EXACT_CHECKPOINTED, plan.getStrategy());
+			assertTrue(plan.getEstimatedBytes() <= rows * row);
+			pop.limitedInfectionExact("C" + rows, n, 0);
+			assertEquals(n, pop.countUsersWithCondition("C" + rows));
+		}
+
+		// Less than that, and only the approximation fits
+		pop.setMemoryBudget(12 * row);
+		assertEquals(Strategy.APPROXIMATE, pop.planLimitedInfectionExact(n, 0).getStrategy());
+	}
+
+	@Test
+	public void testSubsetSumManyEqualSizes() {
+		Random rand = new Random(15);
+		for (int i = 0; i < 20; i++) {
+			// Lots of items, but only a few distinct sizes
+			List<Countable> items = new ArrayList<>();
+			int[] sizes = new int[2000];
+			for (int j = 0; j < sizes.length; j++) {
+				sizes[j] = 1 + rand.nextInt(5) * (rand.nextInt(20) + 1);
+				items.add(new Countable(sizes[j]));
+			}
+			boolean[] reachable = reachableSums(sizes);
+			int n = rand.nextInt(reachable.length - 1) + 1;
+
+			List<Countable> subset = SubsetSum.subsetSum(items, n, 0);
+			assertEquals(reachable[n], subset != null);
+			if (subset == null) continue;
+
+			// It should be a real subset with the right sum
+			int sum = 0;
+			for (Countable item : subset) sum += item.size();
+			assertEquals(n, sum);
+			assertEquals(subset.size(), new HashSet<>(subset).size());
+		}
+	}
+
+	private static class Countable implements SubsetSum.ICountable {
+		private final int size;
+
+		public Countable(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	@Test
+	public void testSubsetSumParallel() {
+		Random rand = new Random(16);
+		// Parallel rows should give exactly the same results as sequential ones
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int i = 0; i < 20; i++) {
+				// Wide enough that rows are split into several chunks
+				int[] array = randomArray(-20000, 50000, 20, rand);
+				int n = rand.nextInt(200000);
+				int threshold = rand.nextInt(5);
+				long budget = i % 2 == 0 ? SubsetSum.DEFAULT_MEMORY_BUDGET : 0;
+
+				int[] sequential = SubsetSum.subsetSum(array, n, threshold, budget, null, 0);
+				int[] parallel = SubsetSum.subsetSum(array, n, threshold, budget, pool, 0);
+				assertArrayEquals(sequential, parallel);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSubsetSumFptas() {
+		Random rand = new Random(17);
+		for (int i = 0; i < 100; i++) {
+			List<Countable> items = new ArrayList<>();
+			int[] sizes = randomArray(1, 1000, 30, rand);
+			for (int size : sizes) items.add(new Countable(size));
+			boolean[] reachable = reachableSums(sizes);
+
+			int n = rand.nextInt(reachable.length);
+			int threshold = rand.nextInt(10);
+			double epsilon = rand.nextDouble() * 0.2;
+			SubsetSum.Approximation<Countable> approximation = SubsetSum.subsetSumApproximate(
+					new SizeHistogram<>(items), n, threshold, epsilon);
+
+			// The sum should be right and never too large...
+			int sum = 0;
+			for (Countable item : approximation.subset) sum += item.size();
+			assertEquals(sum, approximation.sum);
+			assertTrue(sum <= n + threshold);
+
+			// ...and within epsilon of the best sum
+			int best = Math.min(n + threshold, reachable.length - 1);
+			while (!reachable[best]) best--;
+			assertTrue(sum >= (1 - epsilon) * best);
+		}
+	}
+
+	// A simple reference solution: which sums of non-negative items can be made
+	private static boolean[] reachableSums(int[] array) {
+		int total = 0;
+		for (int v : array) total += v;
+		boolean[] reachable = new boolean[total + 1];
+		reachable[0] = true;
+		for (int v : array) {
+			for (int m = total; m >= v; m--) reachable[m] |= reachable[m - v];
+		}
+		return reachable;
+	}
+
 	private void verifySubsetSum(int[] array, int realSum, int threshold) {
 		int[] subset = SubsetSum.subsetSum(array, realSum, threshold);
 
@@ -132,6 +1261,10 @@ public class Tests {
 	}
 
 	private static int[] randomArray(int min, int max, int n) {
+		return randomArray(min, max, n, rand);
+	}
+
+	private static int[] randomArray(int min, int max, int n, Random rand) {
 		int[] array = new int[n];
 		for (int i = 0; i < n; i++) {
 			array[i] = min + rand.nextInt(max - min + 1);
@@ -171,6 +1304,42 @@ public class Tests {
 		}
 	}
 
+	@Test
+	public void testLimitedInfectionFillsGaps() {
+		Population pop = new Population();
+		for (int i = 0; i < 10; i++) createInfectionGroup(pop, 50);
+		for (int i = 0; i < 30; i++) createInfectionGroup(pop, 7);
+		for (int i = 0; i < 100; i++) createInfectionGroup(pop, 1);
+
+		// Large groups go first, and then smaller ones fill in the gaps
+		assertEquals(777, pop.limitedInfection("A", 777, 0));
+		assertEquals(777, pop.countUsersWithCondition("A"));
+		for (Infection infection : pop.getInfections()) {
+			assertTrue(infection.consistent("A"));
+		}
+
+		// A total made of several smaller groups doesn't split any of them
+		assertEquals(49, pop.limitedInfection("B", 49, 0));
+		int inconsistent = 0;
+		for (Infection infection : pop.getInfections()) {
+			if (!infection.consistent("B")) inconsistent++;
+		}
+		assertEquals(0, inconsistent);
+		// And we can never infect more users than there are
+		assertEquals(810, pop.limitedInfection("C", 1000, 0));
+
+		// Only when nothing fits should one group be split: groups of 10 can't make 25
+		Population tens = new Population();
+		for (int i = 0; i < 5; i++) createInfectionGroup(tens, 10);
+		assertEquals(25, tens.limitedInfection("D", 25, 0));
+		assertEquals(25, tens.countUsersWithCondition("D"));
+		inconsistent = 0;
+		for (Infection infection : tens.getInfections()) {
+			if (!infection.consistent("D")) inconsistent++;
+		}
+		assertEquals(1, inconsistent);
+	}
+
 	private static void verifyLimitedInfection(Population pop, int targetSum, int threshold) {
 		// Do the limited infection
 		String condition = "A" + rand.nextDouble();
@@ -223,6 +1392,310 @@ public class Tests {
 		}
 	}
 
+	@Test
+	public void testLimitedInfectionExactFallback() {
+		Random rand = new Random(18);
+		Population pop = new Population();
+		for (int i = 0; i < 20; i++) createInfectionGroup(pop, 100 + rand.nextInt(100));
+
+		// With no budget, we have to approximate
+		pop.setExactCellBudget(0);
+		pop.setEpsilon(0.01);
+		int infected = pop.limitedInfectionExact("A", 1000, 20);
+		assertTrue(pop.wasLastApproximate());
+		if (infected >= 0) {
+			assertEquals(infected, pop.countUsersWithCondition("A"));
+			assertEquals(Math.abs(infected - 1000), pop.getLastError());
+		}
+		assertEquals(infected >= 0, pop.getLastError() <= 20);
+		for (Infection infection : pop.getInfections()) {
+			assertTrue(infection.consistent("A"));
+		}
+
+		// And otherwise we shouldn't
+		pop.setExactCellBudget(Long.MAX_VALUE);
+		pop.limitedInfectionExact("B", 1000, 20);
+		assertTrue(!pop.wasLastApproximate());
+	}
+
+	@Test
+	public void testRolloutPlan() {
+		Random rand = new Random(19);
+		Population pop = new Population();
+		for (int i = 0; i < 20; i++) createInfectionGroup(pop, 100 + rand.nextInt(100));
+		pop.setReuseTables(false);
+		
+		// Small tables are solved exactly, in memory
+		RolloutPlan plan = pop.planLimitedInfectionExact(1000, 20);
+		assertEquals(Strategy.EXACT, plan.getStrategy());
+		assertEquals(20, plan.getComponents());
+		assertTrue(plan.getEstimatedCells() > 0 && plan.getEstimatedBytes() > 0);
+		assertTrue(plan.explain().startsWith("EXACT"));
+		pop.limitedInfectionExact("A", 1000, 20);
+		assertEquals(Strategy.EXACT, pop.getLastPlan().getStrategy());
+		
+		// Tables over the memory budget are checkpointed
+		pop.setMemoryBudget(plan.getEstimatedBytes() - 1);
+		assertEquals(Strategy.EXACT_CHECKPOINTED, pop.planLimitedInfectionExact(1000, 20).getStrategy());
+		pop.setMemoryBudget(SubsetSum.DEFAULT_MEMORY_BUDGET);
+		
+		// And tables over the cell budget are approximated
+		pop.setExactCellBudget(plan.getEstimatedCells() - 1);
+		assertEquals(Strategy.APPROXIMATE, pop.planLimitedInfectionExact(1000, 20).getStrategy());
+		assertEquals(Strategy.GREEDY, pop.planLimitedInfection(1000, 20).getStrategy());
+		
+		// Calls over the rollout budget are refused before infecting anyone
+		pop.setRolloutBudget(0, Long.MAX_VALUE);
+		boolean refused = false;
+		try {
+			pop.limitedInfectionExact("B", 1000, 20);
+		} catch (IllegalStateException e) {
+			refused = true;
+		}
+		assertTrue(refused);
+		assertEquals(0, pop.countUsersWithCondition("B"));
+	}
+
+	@Test
+	public void testReusedTable() {
+		Random rand = new Random(20);
+		Population pop = new Population();
+		for (int i = 0; i < 30; i++) createInfectionGroup(pop, 1 + rand.nextInt(50));
+		int total = pop.countUsers();
+		
+		// The first call builds a table which later calls reuse
+		pop.limitedInfectionExact("A", total / 2, 0);
+		assertTrue(pop.getLastPlan().isReusable());
+		for (int percent = 10; percent <= 100; percent += 10) {
+			int n = total * percent / 100;
+			assertEquals(Strategy.CACHED, pop.planLimitedInfectionExact(n, 2).getStrategy());
+			
+			// And it finds the same sums a fresh table would
+			List<Infection> infections = new ArrayList<>(pop.getInfections());
+			List<Infection> fresh = SubsetSum.subsetSum(infections, n, 2);
+			String condition = "B" + percent;
+			int infected = pop.limitedInfectionExact(condition, n, 2);
+			assertEquals(Strategy.CACHED, pop.getLastPlan().getStrategy());
+			if (fresh == null) continue;
+			assertTrue(infected >= 0);
+			int sum = 0;
+			for (Infection infection : fresh) sum += infection.size();
+			assertTrue(Math.abs(sum - n) <= 2);
+			assertTrue(Math.abs(infected - n) <= Math.abs(sum - n));
+			assertEquals(infected, pop.countUsersWithCondition(condition));
+		}
+		
+		// Merging infections makes it stale
+		long version = pop.getVersion();
+		User.addCoach(pop.getUser(0), pop.getUser(total - 1));
+		assertTrue(pop.getVersion() != version);
+		assertTrue(pop.planLimitedInfectionExact(total / 2, 0).getStrategy() != Strategy.CACHED);
+	}
+
+	@Test
+	public void testReusedTableOnlyWhenCheap() {
+		Random rand = new Random(14);
+		Population pop = new Population();
+		for (int i = 0; i < 2000; i++) createInfectionGroup(pop, 1 + rand.nextInt(50));
+		int total = pop.countUsers();
+		
+		// A small n on a large population builds the narrow table, not one of every sum
+		int n = 100;
+		RolloutPlan plan = pop.planLimitedInfectionExact(n, 0);
+		assertTrue(!plan.isReusable());
+		assertEquals(Strategy.EXACT, plan.getStrategy());
+		int pieces = (int) (plan.getEstimatedCells() / (n + 1));
+		assertEquals((long) pieces * (n + 1), plan.getEstimatedCells());
+		assertTrue(plan.getEstimatedCells() * RolloutPlan.REUSE_FACTOR < (long) pieces * (total + 1));
+		assertEquals(n, pop.limitedInfectionExact("A", n, 0));
+		assertTrue(!pop.getLastPlan().isReusable());
+		
+		// But one close to the total does build the reusable table
+		assertTrue(pop.planLimitedInfectionExact(total / 2, 0).isReusable());
+	}
+	
+	@Test
+	public void testRampInfection() {
+		Random rand = new Random(21);
+		Population pop = new Population();
+		for (int i = 0; i < 200; i++) createInfectionGroup(pop, 1 + rand.nextInt(30));
+		int total = pop.countUsers();
+		
+		Set<User> infected = new HashSet<>();
+		int steps = 0;
+		for (int percent = 1; percent <= 100; percent *= 3) {
+			steps++;
+			int n = total * percent / 100;
+			assertEquals(n, pop.rampInfection("A", n, 0));
+			assertEquals(n, pop.countUsersWithCondition("A"));
+			
+			// Everyone infected so far stays infected
+			for (User user : infected) assertTrue(user.hasCondition("A"));
+			infected.clear();
+			int mixed = 0;
+			for (Infection infection : pop.getInfections()) {
+				if (!infection.consistent("A")) mixed++;
+			}
+			for (int id = 0; id < total; id++) {
+				if (pop.getUser(id).hasCondition("A")) infected.add(pop.getUser(id));
+			}
+			// There's at most one partial infection per step
+			assertTrue(mixed <= steps);
+		}
+		
+		// Ramping down doesn't change anything
+		assertEquals(infected.size(), pop.rampInfection("A", 1, 0));
+		assertEquals(infected.size(), pop.countUsersWithCondition("A"));
+	}
+
+	@Test
+	public void testRampInfectionAfterChanges() {
+		// The index of uninfected infections has to follow merges, splits and
+		// individual conditions between ramps, or ramps would miscount
+		Random rand = new Random(43);
+		Population pop = new Population();
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			createInfectionGroup(pop, 1 + rand.nextInt(20));
+		}
+		for (int id = 0; id < pop.countUsers(); id++) users.add(pop.getUser(id));
+		List<User[]> edges = new ArrayList<>();
+
+		int n = 0;
+		for (int round = 0; round < 30; round++) {
+			// Only infections where no one has the condition can be infected
+			Set<User> infected = new HashSet<>();
+			Set<Infection> touched = new HashSet<>();
+			for (User user : users) {
+				if (user.hasCondition("A")) {
+					infected.add(user);
+					touched.add(user.getInfection());
+				}
+			}
+			int available = 0;
+			for (Infection infection : pop.getInfections()) {
+				if (!touched.contains(infection)) available += infection.size();
+			}
+			n = infected.size() + Math.min(1 + rand.nextInt(200), available);
+			assertEquals(n, pop.rampInfection("A", n, 0));
+			assertEquals(n, pop.countUsersWithCondition("A"));
+			for (User user : infected) assertTrue(user.hasCondition("A"));
+
+			pop.setDeferSplits(round % 3 == 0);
+			for (int i = 0; i < 20; i++) {
+				User coach = users.get(rand.nextInt(users.size()));
+				User pupil = users.get(rand.nextInt(users.size()));
+				if (User.addCoach(coach, pupil)) edges.add(new User[] { coach, pupil });
+			}
+			for (int i = 0; i < 10 && !edges.isEmpty(); i++) {
+				User[] edge = edges.remove(rand.nextInt(edges.size()));
+				User.removeCoach(edge[0], edge[1]);
+			}
+			for (int i = 0; i < 5; i++) {
+				User user = users.get(rand.nextInt(users.size()));
+				if (rand.nextBoolean()) user.addCondition("A");
+				else user.removeCondition("A");
+			}
+			User deleted = users.remove(rand.nextInt(users.size()));
+			deleted.delete();
+			for (int j = edges.size() - 1; j >= 0; j--) {
+				if (edges.get(j)[0] == deleted || edges.get(j)[1] == deleted) edges.remove(j);
+			}
+			pop.setDeferSplits(false);
+		}
+	}
+
+	@Test
+	public void testPopulationView() throws Exception {
+		Random rand = new Random(22);
+		final Population pop = new Population();
+		for (int i = 0; i < 40; i++) createInfectionGroup(pop, 1 + rand.nextInt(30));
+		final PopulationView view = pop.getView();
+		assertTrue(view == pop.getView());
+		assertEquals(pop.countInfections(), view.countInfections());
+		assertEquals(pop.countUsers(), view.countUsers());
+		
+		// Solve on another thread while new users keep joining the population
+		final List<List<PopulationView.Group>> chosen = new ArrayList<>();
+		Thread solver = new Thread(new Runnable() {
+			public void run() {
+				chosen.add(view.chooseExact(100, 0));
+			}
+		});
+		solver.start();
+		List<User> added = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			User user = pop.createUser("");
+			if (!added.isEmpty()) User.addCoach(added.get(rand.nextInt(added.size())), user);
+			added.add(user);
+		}
+		solver.join();
+		assertTrue(view != pop.getView());
+		assertEquals(view.countInfections() + 1, pop.getView().countInfections());
+		
+		// None of the chosen infections changed, so they can all be infected
+		List<PopulationView.Group> subset = chosen.get(0);
+		assertTrue(subset != null);
+		for (PopulationView.Group group : subset) assertTrue(pop.isCurrent(group));
+		assertEquals(100, pop.applyRollout("A", subset));
+		assertEquals(100, pop.countUsersWithCondition("A"));
+		
+		// But once one is merged into another, the whole rollout is refused
+		subset = pop.getView().chooseExact(50, 0);
+		User member = null;
+		for (int id = 0; member == null; id++) {
+			if (pop.getUser(id).getInfection() == subset.get(0).getInfection()) member = pop.getUser(id);
+		}
+		User.addCoach(member, added.get(0));
+		assertTrue(!pop.isCurrent(subset.get(0)));
+		assertEquals(-1, pop.applyRollout("B", subset));
+		assertEquals(0, pop.countUsersWithCondition("B"));
+	}
+
+	@Test
+	public void testPopulationViewConcurrentSolvers() throws Exception {
+		Random rand = new Random(23);
+		Population pop = new Population();
+		for (int i = 0; i < 300; i++) createInfectionGroup(pop, 1 + rand.nextInt(50));
+		for (int i = 0; i < 50; i++) createInfectionGroup(pop, 1);
+		final int total = pop.countUsers();
+
+		// Leave enough memory for checkpoints, but not the whole table, so every
+		// solver recomputes rows of the table they all share
+		pop.setMemoryBudget(pop.getView().planExact(total / 3, 0).getEstimatedBytes() / 2);
+		final PopulationView view = pop.getView();
+
+		// Groups snapshot their users, so later changes don't show up in them
+		PopulationView.Group first = view.chooseExact(1, 0).get(0);
+		int[] members = first.getUserIDs();
+		assertEquals(1, members.length);
+		User.addCoach(pop.getUser(members[0]), pop.createUser(""));
+		assertEquals(1, first.getUserIDs().length);
+
+		// And the view keeps the settings it was made with
+		pop.setMemoryBudget(SubsetSum.DEFAULT_MEMORY_BUDGET);
+		assertEquals(Strategy.EXACT_CHECKPOINTED, view.planExact(total / 3, 0).getStrategy());
+		assertTrue(view.planExact(total / 3, 0).isReusable());
+		view.chooseExact(total / 3, 0);
+		assertEquals(Strategy.CACHED, view.planExact(total / 2, 0).getStrategy());
+
+		final int threads = 4;
+		final int[] wrong = new int[threads];
+		runThreads(threads, new Task() {
+			public void run(int thread) {
+				Random random = new Random(thread);
+				for (int i = 0; i < 20; i++) {
+					int n = 1 + random.nextInt(total);
+					List<PopulationView.Group> subset = view.chooseExact(n, 0);
+					int sum = 0;
+					if (subset != null) for (PopulationView.Group group : subset) sum += group.size();
+					if (sum != n) wrong[thread]++;
+				}
+			}
+		});
+		assertArrayEquals(new int[threads], wrong);
+	}
+
 	private void verifyLimitedInfectionExact(Population pop, int targetSum, int threshold) {
 		// Do the limited exact infection
 		String condition = "A" + rand.nextDouble();